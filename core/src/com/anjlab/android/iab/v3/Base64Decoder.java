@@ -0,0 +1,61 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+/**
+ * Decoder for standard (RFC 2045) Base64 used by Google Play keys and signatures.
+ * Whitespace is ignored, padding is optional.
+ */
+class Base64Decoder {
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++)
+            VALUES[i] = -1;
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            VALUES[alphabet.charAt(i)] = i;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the input contains characters outside of the Base64 alphabet
+     */
+    public static byte[] decode(String input) {
+        byte[] output = new byte[input.length() * 3 / 4 + 3];
+        int length = 0;
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '=')
+                break;
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                continue;
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0)
+                throw new IllegalArgumentException("Bad Base64 input character at " + i);
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                output[length++] = (byte) (buffer >> bits);
+            }
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+}
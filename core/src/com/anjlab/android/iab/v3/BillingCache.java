@@ -0,0 +1,249 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Product id -> purchase token map persisted in a {@link BillingStorage}.
+ * Loading can be deferred, e.g. to a background thread; every accessor loads the cache first
+ * if that has not happened yet, so callers only wait for a load that is still in progress.
+ * <p>
+ * The most recent puts and removes are logged with the version they produced, so that a full list
+ * fetched from Google Play can be applied with {@link #replace(Map, int)} without losing changes
+ * made while it was being fetched.
+ */
+public class BillingCache {
+
+    private static final String ENTRY_DELIMITER = "#####";
+    private static final String LINE_DELIMITER  = ">>>>>";
+    private static final int MAX_LOGGED_MUTATIONS = 64;
+
+    private static class Mutation {
+        final int version;
+        final String productId;
+        /**
+         * null for a removal
+         */
+        final String purchaseToken;
+
+        Mutation(int version, String productId, String purchaseToken) {
+            this.version = version;
+            this.productId = productId;
+            this.purchaseToken = purchaseToken;
+        }
+    }
+
+    private HashMap<String, String> data;
+    private BillingStorage storage;
+    private String cacheKey;
+    private volatile int version;
+    private boolean loaded;
+    private final LinkedList<Mutation> mutations = new LinkedList<Mutation>();
+    /**
+     * Every put and remove that produced a later version is in the mutation log.
+     */
+    private int loggedSinceVersion;
+    private int lastReplaceFetchVersion = -1;
+
+	public BillingCache(BillingStorage storage, String key) {
+	    this(storage, key, false);
+	}
+
+    /**
+     * @param deferLoad true to skip reading the storage until {@link #load()} or the first access
+     */
+    public BillingCache(BillingStorage storage, String key, boolean deferLoad) {
+        this.storage = storage;
+        data = new HashMap<String, String>();
+        cacheKey = key;
+        if (!deferLoad)
+            load();
+    }
+
+	private String getPreferencesCacheKey() {
+		return BillingCache.class.getPackage().getName() + cacheKey;
+	}
+
+    /**
+     * Reads the cache from the storage unless that was already done.
+     */
+    public synchronized void load() {
+        if (loaded)
+            return;
+		for(String entry : storage.loadString(getPreferencesCacheKey(), "").split(Pattern.quote(ENTRY_DELIMITER))) {
+            if (entry.length() > 0) {
+                String[] parts = entry.split(Pattern.quote(LINE_DELIMITER));
+                if (parts.length > 1)
+                    data.put(parts[0], parts[1]);
+            }
+		}
+        loaded = true;
+        version++;
+        loggedSinceVersion = version;
+	}
+
+    private void logMutation(String productId, String purchaseToken) {
+        mutations.add(new Mutation(version, productId, purchaseToken));
+        if (mutations.size() > MAX_LOGGED_MUTATIONS)
+            loggedSinceVersion = mutations.removeFirst().version;
+    }
+
+	/**
+	 * Persists the cache, e.g. after a series of {@link #put(String, String, boolean)} calls without flushing.
+	 * @return false if the storage could not save it, e.g. because its Activity is gone
+	 */
+	public synchronized boolean flush() {
+        load();
+        ArrayList<String> output = new ArrayList<String>();
+        for(String productId : data.keySet())
+            output.add(productId + LINE_DELIMITER + data.get(productId));
+		return storage.saveString(getPreferencesCacheKey(), join(ENTRY_DELIMITER, output));
+	}
+
+	public synchronized boolean includesProduct(String productId) {
+        load();
+		return data != null && data.containsKey(productId);
+	}
+
+    public synchronized String getProductPurchaseToken(String productId) {
+        load();
+        return data.containsKey(productId) ? data.get(productId) : null;
+    }
+
+    /**
+     * @return false if the product was added but could not be persisted
+     */
+    public synchronized boolean put(String productId, String purchaseToken) {
+        return put(productId, purchaseToken, true);
+    }
+
+    /**
+     * @param flush false to defer persisting until {@link #flush()}, e.g. while importing many entries
+     * @return false if the product was added but could not be persisted
+     */
+    public synchronized boolean put(String productId, String purchaseToken, boolean flush) {
+        load();
+        if (!data.containsKey(productId)) {
+            data.put(productId, purchaseToken);
+            version++;
+            logMutation(productId, purchaseToken);
+            if (flush)
+                return flush();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the product was removed but that could not be persisted
+     */
+    public synchronized boolean remove(String productId) {
+        load();
+        if (data.containsKey(productId)) {
+            data.remove(productId);
+            version++;
+            logMutation(productId, null);
+            return flush();
+        }
+        return true;
+    }
+
+	public synchronized boolean clear() {
+        loaded = true;
+        data.clear();
+        version++;
+        mutations.clear();
+        loggedSinceVersion = version;
+		return flush();
+	}
+
+    /**
+     * Replaces the contents with a full list fetched from Google Play, then re-applies the puts and
+     * removes made since the fetch started, so a purchase or consumption that raced with the fetch
+     * is neither lost nor undone. The result is persisted once.
+     * @param fetchedAtVersion {@link #getVersion()} read (after loading) before the list was requested
+     * @return false if the list was not applied because the changes made since the fetch are no longer
+     * logged or a list fetched later was already applied, or if the result could not be persisted
+     */
+    public synchronized boolean replace(Map<String, String> contents, int fetchedAtVersion) {
+        load();
+        if (fetchedAtVersion < loggedSinceVersion || fetchedAtVersion < lastReplaceFetchVersion)
+            return false;
+        lastReplaceFetchVersion = fetchedAtVersion;
+        data.clear();
+        data.putAll(contents);
+        for (Mutation mutation : mutations) {
+            if (mutation.version <= fetchedAtVersion)
+                continue;
+            if (mutation.purchaseToken != null)
+                data.put(mutation.productId, mutation.purchaseToken);
+            else
+                data.remove(mutation.productId);
+        }
+        version++;
+        return flush();
+    }
+
+    /**
+     * @return key the cache is stored under, without the package prefix
+     */
+    public String getKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Incremented on every change of the cached products; lets derived data detect staleness cheaply.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return copy of the product id -> purchase token entries, e.g. to write them out without holding the cache lock
+     */
+    public synchronized Map<String, String> getEntries() {
+        load();
+        return new HashMap<String, String>(data);
+    }
+
+    public synchronized List<String> getContents() {
+        load();
+        return new ArrayList<String>(data.keySet());
+    }
+
+    private static String join(String delimiter, Iterable<String> parts) {
+        StringBuilder result = new StringBuilder();
+        boolean first = true;
+        for (String part : parts) {
+            if (!first)
+                result.append(delimiter);
+            result.append(part);
+            first = false;
+        }
+        return result.toString();
+    }
+
+	@Override
+	public synchronized String toString() {
+        load();
+		return join(", ", data.keySet());
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, fsync'd journal of billing cache mutations.
+ * Every purchase and consume writes its intent before touching Google Play or the cache
+ * and a commit record afterwards, so that a mutation interrupted by process death
+ * can be replayed on the next start instead of forcing a full resync.
+ * Each record is checksummed; a torn record at the end of the file is ignored.
+ */
+public class BillingJournal {
+    private static final String LOG_TAG = "iabv3.journal";
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_CONSUME = 2;
+    public static final byte OP_CONSUMED = 3;
+    public static final byte OP_COMMIT = 4;
+
+    private static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+
+    /**
+     * Mutation that was started but never committed.
+     */
+    public static class Entry {
+        public byte op;
+        public long sequence;
+        public String cacheKey;
+        public String productId;
+        public String purchaseToken;
+        /**
+         * For OP_CONSUME entries: Google Play confirmed the consumption.
+         */
+        public boolean consumed;
+    }
+
+    /**
+     * Outcome of {@link #replay(BillingCache...)}.
+     */
+    public static class Replay {
+        /**
+         * A pending entry was applied to its cache.
+         */
+        public boolean applied;
+        /**
+         * A consumption was started but Google Play never confirmed it. It may still have consumed
+         * the product, so the cache needs a restore.
+         */
+        public boolean unconfirmedConsumption;
+    }
+
+    /**
+     * Journals opened with {@link #open(File)}, by path.
+     */
+    private static final HashMap<String, BillingJournal> openJournals = new HashMap<String, BillingJournal>();
+
+    private File file;
+    private FileOutputStream output;
+    private long nextSequence = 1;
+    private int openEntries;
+    private boolean closed;
+    private boolean replayed;
+    private int references;
+
+    public BillingJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the journal of the given file, shared by everyone in the process who opened it
+     * until all of them closed it. Separate instances of the same file would number their entries
+     * on their own, commit each other's entries and truncate each other's pending entries.
+     */
+    public static BillingJournal open(File file) {
+        synchronized (openJournals) {
+            String path = file.getAbsolutePath();
+            BillingJournal journal = openJournals.get(path);
+            if (journal == null) {
+                journal = new BillingJournal(file);
+                openJournals.put(path, journal);
+            }
+            journal.references++;
+            return journal;
+        }
+    }
+
+    public synchronized long beginPut(String cacheKey, String productId, String purchaseToken) {
+        return append(OP_PUT, nextSequence++, cacheKey, productId, purchaseToken);
+    }
+
+    public synchronized long beginConsume(String cacheKey, String productId, String purchaseToken) {
+        return append(OP_CONSUME, nextSequence++, cacheKey, productId, purchaseToken);
+    }
+
+    public synchronized void markConsumed(long sequence) {
+        if (sequence > 0)
+            append(OP_CONSUMED, sequence, "", "", "");
+    }
+
+    public synchronized void commit(long sequence) {
+        if (sequence <= 0)
+            return;
+        append(OP_COMMIT, sequence, "", "", "");
+        if (openEntries == 0 && file.length() > COMPACT_THRESHOLD_BYTES)
+            reset();
+    }
+
+    private long append(byte op, long sequence, String cacheKey, String productId, String purchaseToken) {
+        if (closed) {
+            BillingLog.e(LOG_TAG, "Journal is closed, not recording the mutation of " + productId);
+            return -1;
+        }
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            DataOutputStream record = new DataOutputStream(buffer);
+            record.writeByte(op);
+            record.writeLong(sequence);
+            record.writeUTF(cacheKey);
+            record.writeUTF(productId);
+            record.writeUTF(purchaseToken != null ? purchaseToken : "");
+            CRC32 crc = new CRC32();
+            crc.update(buffer.toByteArray());
+            record.writeInt((int) crc.getValue());
+            record.flush();
+
+            if (output == null)
+                output = new FileOutputStream(file, true);
+            output.write(buffer.toByteArray());
+            output.getFD().sync();
+
+            if (op == OP_PUT || op == OP_CONSUME)
+                openEntries++;
+            else if (op == OP_COMMIT && openEntries > 0)
+                openEntries--;
+            return sequence;
+        }
+        catch (IOException e) {
+            BillingLog.e(LOG_TAG, e.toString());
+        }
+        return -1;
+    }
+
+    /**
+     * Records a purchase and stores it in the cache. The entry is committed only if the cache
+     * persisted the purchase; otherwise it stays pending and is replayed on the next start.
+     * @return true if the purchase was persisted
+     */
+    public boolean put(BillingCache cache, String productId, String purchaseToken) {
+        long sequence = beginPut(cache.getKey(), productId, purchaseToken);
+        if (!cache.put(productId, purchaseToken))
+            return false;
+        commit(sequence);
+        return true;
+    }
+
+    /**
+     * Completes a consumption that Google Play confirmed: marks the entry consumed and removes
+     * the product from the cache. The entry is committed only if the cache persisted the removal.
+     * @param sequence entry returned by {@link #beginConsume}
+     * @return true if the removal was persisted
+     */
+    public boolean completeConsume(long sequence, BillingCache cache, String productId) {
+        markConsumed(sequence);
+        if (!cache.remove(productId))
+            return false;
+        commit(sequence);
+        return true;
+    }
+
+    /**
+     * Re-applies pending purchases and confirmed consumptions to the caches they were recorded for,
+     * then truncates the journal if all of them were persisted now. Consumptions Google Play never
+     * confirmed are not applied but reported, the caller has to restore purchases for them.
+     * Only the first call does anything: the entries pending later belong to mutations still in progress.
+     */
+    public synchronized Replay replay(BillingCache... caches) {
+        Replay result = new Replay();
+        if (replayed)
+            return result;
+        replayed = true;
+        boolean persisted = true;
+        for (Entry entry : readPending()) {
+            BillingCache cache = null;
+            for (BillingCache candidate : caches) {
+                if (candidate.getKey().equals(entry.cacheKey))
+                    cache = candidate;
+            }
+            if (cache == null) {
+                BillingLog.e(LOG_TAG, "No cache " + entry.cacheKey + " to replay the mutation of " + entry.productId);
+            }
+            else if (entry.op == OP_PUT) {
+                BillingLog.d(LOG_TAG, "Replaying purchase of " + entry.productId);
+                persisted &= cache.put(entry.productId, entry.purchaseToken);
+                result.applied = true;
+            }
+            else if (entry.op == OP_CONSUME && entry.consumed) {
+                BillingLog.d(LOG_TAG, "Replaying consumption of " + entry.productId);
+                persisted &= cache.remove(entry.productId);
+                result.applied = true;
+            }
+            else if (entry.op == OP_CONSUME) {
+                BillingLog.d(LOG_TAG, "Consumption of " + entry.productId + " was never confirmed");
+                result.unconfirmedConsumption = true;
+            }
+        }
+        if (persisted)
+            reset();
+        return result;
+    }
+
+    /**
+     * Reads the journal and returns the mutations that were started but not committed, in order.
+     */
+    public synchronized List<Entry> readPending() {
+        LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+        if (!file.exists())
+            return new ArrayList<Entry>();
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+                DataOutputStream copy = new DataOutputStream(buffer);
+                Entry entry = new Entry();
+                entry.op = input.readByte();
+                entry.sequence = input.readLong();
+                entry.cacheKey = input.readUTF();
+                entry.productId = input.readUTF();
+                entry.purchaseToken = input.readUTF();
+                int checksum = input.readInt();
+
+                copy.writeByte(entry.op);
+                copy.writeLong(entry.sequence);
+                copy.writeUTF(entry.cacheKey);
+                copy.writeUTF(entry.productId);
+                copy.writeUTF(entry.purchaseToken);
+                copy.flush();
+                CRC32 crc = new CRC32();
+                crc.update(buffer.toByteArray());
+                if ((int) crc.getValue() != checksum) {
+                    BillingLog.e(LOG_TAG, "Corrupted journal record, ignoring the rest of the journal");
+                    break;
+                }
+
+                if (entry.sequence >= nextSequence)
+                    nextSequence = entry.sequence + 1;
+                if (entry.op == OP_PUT || entry.op == OP_CONSUME) {
+                    pending.put(entry.sequence, entry);
+                }
+                else if (entry.op == OP_CONSUMED) {
+                    Entry consume = pending.get(entry.sequence);
+                    if (consume != null)
+                        consume.consumed = true;
+                }
+                else if (entry.op == OP_COMMIT) {
+                    pending.remove(entry.sequence);
+                }
+            }
+        }
+        catch (EOFException e) {
+            // end of journal, possibly a torn last record
+        }
+        catch (IOException e) {
+            BillingLog.e(LOG_TAG, e.toString());
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                    BillingLog.e(LOG_TAG, e.toString());
+                }
+            }
+        }
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    /**
+     * Truncates the journal. Call only after every pending entry was applied and persisted.
+     */
+    public synchronized void reset() {
+        if (closed)
+            return;
+        try {
+            if (output == null)
+                output = new FileOutputStream(file, true);
+            output.getChannel().truncate(0);
+            output.getFD().sync();
+            openEntries = 0;
+        }
+        catch (IOException e) {
+            BillingLog.e(LOG_TAG, e.toString());
+        }
+    }
+
+    /**
+     * Closes the journal file once everyone who opened it with {@link #open(File)} closed it.
+     * Mutations recorded afterwards are dropped instead of reopening it.
+     */
+    public void close() {
+        synchronized (openJournals) {
+            if (references > 1) {
+                references--;
+                return;
+            }
+            references = 0;
+            String path = file.getAbsolutePath();
+            if (openJournals.get(path) == this)
+                openJournals.remove(path);
+        }
+        synchronized (this) {
+            closed = true;
+            if (output != null) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    BillingLog.e(LOG_TAG, e.toString());
+                }
+                output = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+/**
+ * Logging facade of the Android-free core. The Android library installs a logger
+ * backed by android.util.Log; on the JVM messages go to System.err unless another logger is set.
+ */
+public class BillingLog {
+
+    public static interface Logger {
+        void d(String tag, String message);
+        void e(String tag, String message);
+    }
+
+    private static volatile Logger logger = new Logger() {
+        @Override
+        public void d(String tag, String message) {
+        }
+
+        @Override
+        public void e(String tag, String message) {
+            System.err.println(tag + ": " + message);
+        }
+    };
+
+    public static void setLogger(Logger newLogger) {
+        if (newLogger != null)
+            logger = newLogger;
+    }
+
+    public static void d(String tag, String message) {
+        logger.d(tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        logger.e(tag, message);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Streams billing state as NDJSON, one record per line:
+ * <pre>
+ *     {"kind":"product","productId":"...","purchaseToken":"..."}
+ *     {"kind":"subscription","productId":"...","purchaseToken":"..."}
+ *     {"kind":"purchase","type":"inapp","purchaseData":"{...}","signature":"..."}
+ * </pre>
+ * Records are written as they are produced, so memory use does not grow with the amount of exported data.
+ * {@link BillingStateImporter} reads the same format.
+ */
+public class BillingStateExporter {
+    public static final String KIND_PRODUCT = "product";
+    public static final String KIND_SUBSCRIPTION = "subscription";
+    public static final String KIND_PURCHASE = "purchase";
+
+    private final Writer writer;
+    private int recordCount;
+
+    public BillingStateExporter(OutputStream output) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+    }
+
+    /**
+     * Writes every entry of the cache as a record of the given kind. The entries are copied first,
+     * so a slow stream never keeps the cache locked.
+     */
+    public void writeCache(String kind, BillingCache cache) throws IOException {
+        for (Map.Entry<String, String> entry : cache.getEntries().entrySet())
+            writeCacheEntry(kind, entry.getKey(), entry.getValue());
+    }
+
+    public void writeCacheEntry(String kind, String productId, String purchaseToken) throws IOException {
+        try {
+            JSONObject record = new JSONObject();
+            record.put("kind", kind);
+            record.put("productId", productId);
+            record.put("purchaseToken", purchaseToken);
+            write(record);
+        }
+        catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Writes a purchase exactly as returned by Google Play.
+     */
+    public void writePurchase(String type, String purchaseData, String signature) throws IOException {
+        try {
+            JSONObject record = new JSONObject();
+            record.put("kind", KIND_PURCHASE);
+            record.put("type", type);
+            record.put("purchaseData", purchaseData);
+            if (signature != null)
+                record.put("signature", signature);
+            write(record);
+        }
+        catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private void write(JSONObject record) throws IOException {
+        writer.write(record.toString());
+        writer.write('\n');
+        recordCount++;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flushes buffered records to the stream. The stream itself is left open.
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+}
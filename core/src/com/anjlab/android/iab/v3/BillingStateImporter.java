@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads NDJSON written by {@link BillingStateExporter} line by line into billing caches,
+ * e.g. to seed test devices. Product and subscription records are added as they are;
+ * purchase records are added to the cache matching their type. Records are collected first and
+ * added only when the whole stream was read, so a malformed record leaves the caches untouched.
+ * Each cache is then persisted once.
+ */
+public class BillingStateImporter {
+    private final BillingCache products;
+    private final BillingCache subscriptions;
+
+    public BillingStateImporter(BillingCache products, BillingCache subscriptions) {
+        this.products = products;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * @return number of imported records
+     * @throws IOException if the stream cannot be read or contains a malformed record
+     */
+    public int read(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        // one entry per distinct product, so memory does not grow with the number of records
+        LinkedHashMap<String, String> importedProducts = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, String> importedSubscriptions = new LinkedHashMap<String, String>();
+        int lineNumber = 0;
+        int recordCount = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0)
+                    continue;
+                JSONObject record = new JSONObject(line);
+                String kind = record.getString("kind");
+                if (BillingStateExporter.KIND_PRODUCT.equals(kind)) {
+                    stage(importedProducts, record.getString("productId"), record.getString("purchaseToken"));
+                }
+                else if (BillingStateExporter.KIND_SUBSCRIPTION.equals(kind)) {
+                    stage(importedSubscriptions, record.getString("productId"), record.getString("purchaseToken"));
+                }
+                else if (BillingStateExporter.KIND_PURCHASE.equals(kind)) {
+                    JSONObject purchase = new JSONObject(record.getString("purchaseData"));
+                    stage(Constants.PRODUCT_TYPE_SUBSCRIPTION.equals(record.optString("type")) ? importedSubscriptions : importedProducts,
+                            purchase.getString("productId"), purchase.getString("purchaseToken"));
+                }
+                else {
+                    BillingLog.d("iabv3.import", "Skipping unknown record kind " + kind);
+                    continue;
+                }
+                recordCount++;
+            }
+        }
+        catch (JSONException e) {
+            throw new IOException(String.format("Malformed record at line %d: %s", lineNumber, e.toString()));
+        }
+        boolean persisted = apply(products, importedProducts);
+        persisted &= apply(subscriptions, importedSubscriptions);
+        if (!persisted)
+            throw new IOException("Imported records could not be persisted");
+        return recordCount;
+    }
+
+    /**
+     * Keeps the first token of a product, like {@link BillingCache#put} does.
+     */
+    private static void stage(LinkedHashMap<String, String> staged, String productId, String purchaseToken) {
+        if (!staged.containsKey(productId))
+            staged.put(productId, purchaseToken);
+    }
+
+    private static boolean apply(BillingCache cache, Map<String, String> staged) {
+        if (staged.isEmpty())
+            return true;
+        synchronized (cache) {
+            for (Map.Entry<String, String> entry : staged.entrySet())
+                cache.put(entry.getKey(), entry.getValue(), false);
+            return cache.flush();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifies receipts with your own backend. Receipts are POSTed in batches as
+ * <pre>
+ *     {"receipts": [{"purchaseData": "...", "signature": "..."}, ...]}
+ * </pre>
+ * and the backend answers with one verdict per receipt, in the same order:
+ * <pre>
+ *     {"verdicts": [true, false, ...]}
+ * </pre>
+ * Large lists are split into batches of at most maxBatchSize receipts, and at most
+ * maxConcurrentRequests batches are in flight at once. Accepted receipts are cached by a SHA-256 hash
+ * of the whole receipt (purchase data and signature), so an identical receipt is sent to the backend
+ * only once, while a receipt with altered data or signature is always verified again. Rejections are
+ * not cached, the backend may not know about a fresh purchase yet.
+ * A failed request is reported by the exception it failed with, e.g. an IOException.
+ */
+public class HttpPurchaseVerifier implements PurchaseVerifier {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 2;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+    private static final int MAX_CACHED_VERDICTS = 1000;
+
+    private final URL endpoint;
+    private final int maxBatchSize;
+    private final ExecutorService executor;
+    private volatile int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Keys of accepted receipts, in access order.
+     */
+    private final LinkedHashMap<String, Boolean> accepted = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CACHED_VERDICTS;
+        }
+    };
+
+    public HttpPurchaseVerifier(URL endpoint) {
+        this(endpoint, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    public HttpPurchaseVerifier(URL endpoint, int maxBatchSize, int maxConcurrentRequests) {
+        this.endpoint = endpoint;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentRequests), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "iabv3-verify");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setTimeout(int millis) {
+        timeoutMillis = millis;
+    }
+
+    @Override
+    public boolean[] verify(List<Receipt> receipts) throws Exception {
+        boolean[] result = new boolean[receipts.size()];
+        String[] keys = new String[receipts.size()];
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+        synchronized (accepted) {
+            for (int i = 0; i < receipts.size(); i++) {
+                keys[i] = getReceiptKey(receipts.get(i));
+                if (accepted.get(keys[i]) != null)
+                    result[i] = true;
+                else
+                    pending.add(i);
+            }
+        }
+        if (pending.isEmpty())
+            return result;
+
+        ArrayList<List<Integer>> batches = new ArrayList<List<Integer>>();
+        for (int start = 0; start < pending.size(); start += maxBatchSize)
+            batches.add(pending.subList(start, Math.min(start + maxBatchSize, pending.size())));
+
+        ArrayList<Future<boolean[]>> responses = new ArrayList<Future<boolean[]>>();
+        for (List<Integer> batch : batches) {
+            final ArrayList<Receipt> batchReceipts = new ArrayList<Receipt>(batch.size());
+            for (int index : batch)
+                batchReceipts.add(receipts.get(index));
+            responses.add(executor.submit(new Callable<boolean[]>() {
+                @Override
+                public boolean[] call() throws Exception {
+                    return post(batchReceipts);
+                }
+            }));
+        }
+
+        for (int b = 0; b < batches.size(); b++) {
+            List<Integer> batch = batches.get(b);
+            boolean[] batchVerdicts = getBatchVerdicts(responses, b);
+            synchronized (accepted) {
+                for (int j = 0; j < batch.size(); j++) {
+                    int index = batch.get(j);
+                    result[index] = batchVerdicts[j];
+                    if (batchVerdicts[j])
+                        accepted.put(keys[index], Boolean.TRUE);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a batch. If it failed, the other batches are cancelled and the exception
+     * thrown by {@link #post(List)} is rethrown instead of the ExecutionException wrapping it.
+     */
+    private static boolean[] getBatchVerdicts(List<Future<boolean[]>> responses, int batch) throws Exception {
+        try {
+            return responses.get(batch).get();
+        }
+        catch (ExecutionException e) {
+            for (Future<boolean[]> response : responses)
+                response.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    static String getReceiptKey(Receipt receipt) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(String.valueOf(receipt.purchaseData).getBytes("UTF-8"));
+        // separator, so that moving characters between data and signature changes the key
+        digest.update((byte) 0);
+        digest.update(String.valueOf(receipt.signature).getBytes("UTF-8"));
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest())
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return key.toString();
+    }
+
+    private boolean[] post(List<Receipt> receipts) throws IOException, JSONException {
+        JSONArray items = new JSONArray();
+        for (Receipt receipt : receipts) {
+            JSONObject item = new JSONObject();
+            item.put("purchaseData", receipt.purchaseData);
+            item.put("signature", receipt.signature);
+            items.put(item);
+        }
+        JSONObject request = new JSONObject();
+        request.put("receipts", items);
+        byte[] body = request.toString().getBytes("UTF-8");
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream output = connection.getOutputStream();
+            output.write(body);
+            output.close();
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException("Verification request failed: HTTP " + status);
+
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1)
+                response.write(buffer, 0, read);
+            input.close();
+
+            JSONArray results = new JSONObject(response.toString("UTF-8")).getJSONArray("verdicts");
+            if (results.length() != receipts.size())
+                throw new IOException(String.format("Expected %d verdicts, got %d", receipts.size(), results.length()));
+            boolean[] verdicts = new boolean[results.length()];
+            for (int i = 0; i < verdicts.length; i++)
+                verdicts[i] = results.optBoolean(i);
+            return verdicts;
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Stops the request threads. The verifier cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
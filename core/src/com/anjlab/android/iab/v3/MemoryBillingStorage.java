@@ -0,0 +1,36 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.HashMap;
+
+/**
+ * Non-persistent BillingStorage, e.g. for backend jobs and unit tests.
+ */
+public class MemoryBillingStorage implements BillingStorage {
+    private final HashMap<String, String> data = new HashMap<String, String>();
+
+    @Override
+    public synchronized String loadString(String key, String defValue) {
+        return data.containsKey(key) ? data.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean saveString(String key, String value) {
+        data.put(key, value);
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.List;
+
+/**
+ * Decides whether purchase receipts returned by Google Play are genuine.
+ * BillingProcessor uses {@link SignaturePurchaseVerifier} unless another one is set.
+ */
+public interface PurchaseVerifier {
+
+    /**
+     * Signed purchase data as returned by Google Play.
+     */
+    public static class Receipt {
+        public final String purchaseData;
+        public final String signature;
+
+        public Receipt(String purchaseData, String signature) {
+            this.purchaseData = purchaseData;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * @return verdict for every receipt, in the order of the receipts
+     */
+    boolean[] verify(List<Receipt> receipts) throws Exception;
+}
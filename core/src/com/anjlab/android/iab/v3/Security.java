@@ -15,10 +15,6 @@
 
 package com.anjlab.android.iab.v3;
 
-import android.text.TextUtils;
-import android.util.Base64;
-import android.util.Log;
-
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -53,9 +49,9 @@ class Security {
      * @param signature the signature for the data, signed with the private key
      */
     public static boolean verifyPurchase(String base64PublicKey, String signedData, String signature) {
-        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(base64PublicKey) ||
-                TextUtils.isEmpty(signature)) {
-            Log.e(TAG, "Purchase verification failed: missing data.");
+        if (isEmpty(signedData) || isEmpty(base64PublicKey) ||
+                isEmpty(signature)) {
+            BillingLog.e(TAG, "Purchase verification failed: missing data.");
             return false;
         }
 
@@ -63,6 +59,10 @@ class Security {
         return Security.verify(key, signedData, signature);
     }
 
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -72,16 +72,16 @@ class Security {
      */
     public static PublicKey generatePublicKey(String encodedPublicKey) {
         try {
-            byte[] decodedKey = Base64.decode(encodedPublicKey, Base64.DEFAULT);
+            byte[] decodedKey = Base64Decoder.decode(encodedPublicKey);
             KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
             return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         } catch (InvalidKeySpecException e) {
-            Log.e(TAG, "Invalid key specification.");
+            BillingLog.e(TAG, "Invalid key specification.");
             throw new IllegalArgumentException(e);
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Base64 decoding failed.");
+            BillingLog.e(TAG, "Base64 decoding failed.");
             throw e;
         }
     }
@@ -101,19 +101,19 @@ class Security {
             sig = Signature.getInstance(SIGNATURE_ALGORITHM);
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature, Base64.DEFAULT))) {
-                Log.e(TAG, "Signature verification failed.");
+            if (!sig.verify(Base64Decoder.decode(signature))) {
+                BillingLog.e(TAG, "Signature verification failed.");
                 return false;
             }
             return true;
         } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "NoSuchAlgorithmException.");
+            BillingLog.e(TAG, "NoSuchAlgorithmException.");
         } catch (InvalidKeyException e) {
-            Log.e(TAG, "Invalid key specification.");
+            BillingLog.e(TAG, "Invalid key specification.");
         } catch (SignatureException e) {
-            Log.e(TAG, "Signature exception.");
+            BillingLog.e(TAG, "Signature exception.");
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Base64 decoding failed.");
+            BillingLog.e(TAG, "Base64 decoding failed.");
         }
         return false;
     }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Verifies receipt signatures on the device with the app's public key from the Google Developer console.
+ * Without a key every receipt is accepted. The key is parsed once, on the first verification.
+ */
+public class SignaturePurchaseVerifier implements PurchaseVerifier {
+    private static final String LOG_TAG = "iabv3.signature";
+
+    private final String base64PublicKey;
+    private PublicKey publicKey;
+    private boolean invalidKey;
+
+    public SignaturePurchaseVerifier(String base64PublicKey) {
+        this.base64PublicKey = base64PublicKey;
+    }
+
+    /**
+     * @return the parsed key, or null if it cannot be parsed
+     */
+    private synchronized PublicKey getPublicKey() {
+        if (publicKey == null && !invalidKey) {
+            try {
+                publicKey = Security.generatePublicKey(base64PublicKey);
+            }
+            catch (IllegalArgumentException e) {
+                BillingLog.e(LOG_TAG, e.toString());
+                invalidKey = true;
+            }
+        }
+        return publicKey;
+    }
+
+    @Override
+    public boolean[] verify(List<Receipt> receipts) {
+        boolean[] verdicts = new boolean[receipts.size()];
+        if (base64PublicKey == null || base64PublicKey.length() == 0) {
+            for (int i = 0; i < verdicts.length; i++)
+                verdicts[i] = true;
+            return verdicts;
+        }
+        PublicKey key = getPublicKey();
+        if (key == null)
+            return verdicts;
+        for (int i = 0; i < verdicts.length; i++) {
+            Receipt receipt = receipts.get(i);
+            if (isEmpty(receipt.purchaseData) || isEmpty(receipt.signature)) {
+                BillingLog.e(LOG_TAG, "Purchase verification failed: missing data.");
+                continue;
+            }
+            try {
+                verdicts[i] = Security.verify(key, receipt.purchaseData, receipt.signature);
+            }
+            catch (Exception e) {
+                verdicts[i] = false;
+            }
+        }
+        return verdicts;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Store catalog built from getSkuDetails results. Prices are kept as numbers
+ * ({@link SkuDetails#getPriceAmountMicros()}) and every product is indexed by item type,
+ * by currency and by both, each index sorted by price, so sorted and filtered views
+ * are read straight from an index. Refreshed details replace only the affected entries.
+ */
+public class SkuCatalog {
+    private static final String ALL = "";
+
+    private static class Entry implements Comparable<Entry> {
+        final long priceMicros;
+        final String key;
+        final SkuDetails details;
+
+        Entry(long priceMicros, String key, SkuDetails details) {
+            this.priceMicros = priceMicros;
+            this.key = key;
+            this.details = details;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priceMicros != other.priceMicros)
+                return priceMicros < other.priceMicros ? -1 : 1;
+            return key.compareTo(other.key);
+        }
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private final HashMap<String, TreeSet<Entry>> indexes = new HashMap<String, TreeSet<Entry>>();
+    private int version;
+
+    private static String getKey(String itemType, String productId) {
+        return itemType + ":" + productId;
+    }
+
+    private static String getIndexKey(String itemType, String currency) {
+        return (itemType != null ? itemType : ALL) + "|" + (currency != null ? currency : ALL);
+    }
+
+    private static String[] getIndexKeys(Entry entry) {
+        String itemType = entry.details.mItemType;
+        String currency = entry.details.getPriceCurrencyCode();
+        return new String[] {
+                getIndexKey(null, null),
+                getIndexKey(itemType, null),
+                getIndexKey(null, currency),
+                getIndexKey(itemType, currency)
+        };
+    }
+
+    /**
+     * Adds new products and replaces the ones whose details were refreshed.
+     */
+    public synchronized void update(Collection<SkuDetails> detailsList) {
+        for (SkuDetails details : detailsList) {
+            String key = getKey(details.mItemType, details.getSku());
+            Entry previous = entries.get(key);
+            if (previous != null) {
+                if (previous.details.mJson.equals(details.mJson))
+                    continue;
+                for (String indexKey : getIndexKeys(previous))
+                    indexes.get(indexKey).remove(previous);
+            }
+            Entry entry = new Entry(details.getPriceAmountMicros(), key, details);
+            entries.put(key, entry);
+            for (String indexKey : getIndexKeys(entry)) {
+                TreeSet<Entry> index = indexes.get(indexKey);
+                if (index == null) {
+                    index = new TreeSet<Entry>();
+                    indexes.put(indexKey, index);
+                }
+                index.add(entry);
+            }
+            version++;
+        }
+    }
+
+    public synchronized SkuDetails get(String itemType, String productId) {
+        Entry entry = entries.get(getKey(itemType, productId));
+        return entry != null ? entry.details : null;
+    }
+
+    /**
+     * @param itemType item type to include, or null for all
+     * @param currency currency code to include, or null for all
+     * @return matching products sorted by price
+     */
+    public List<SkuDetails> getSortedByPrice(String itemType, String currency, boolean ascending) {
+        return getInPriceRange(itemType, currency, Long.MIN_VALUE, Long.MAX_VALUE, ascending);
+    }
+
+    /**
+     * @param itemType item type to include, or null for all
+     * @param currency currency code to include, or null for all
+     * @return matching products priced between minMicros and maxMicros (inclusive), sorted by price
+     */
+    public synchronized List<SkuDetails> getInPriceRange(String itemType, String currency,
+                                                         long minMicros, long maxMicros, boolean ascending) {
+        TreeSet<Entry> index = indexes.get(getIndexKey(itemType, currency));
+        if (index == null || minMicros > maxMicros)
+            return new ArrayList<SkuDetails>();
+        SortedSet<Entry> range = maxMicros == Long.MAX_VALUE
+                ? index.tailSet(new Entry(minMicros, ALL, null))
+                : index.subSet(new Entry(minMicros, ALL, null), new Entry(maxMicros + 1, ALL, null));
+        ArrayList<SkuDetails> result = new ArrayList<SkuDetails>(range.size());
+        for (Entry entry : range)
+            result.add(entry.details);
+        if (!ascending)
+            Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * @return currency codes of the cataloged products
+     */
+    public synchronized List<String> getCurrencies() {
+        ArrayList<String> currencies = new ArrayList<String>();
+        String prefix = getIndexKey(null, null);
+        for (String indexKey : indexes.keySet()) {
+            if (indexKey.startsWith(prefix) && indexKey.length() > prefix.length() && !indexes.get(indexKey).isEmpty())
+                currencies.add(indexKey.substring(prefix.length()));
+        }
+        Collections.sort(currencies);
+        return currencies;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Incremented whenever an entry is added or changed; lets views cache their results.
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        indexes.clear();
+        version++;
+    }
+}
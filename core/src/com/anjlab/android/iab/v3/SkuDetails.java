@@ -20,8 +20,6 @@ import java.util.regex.Pattern;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.util.Log;
-
 /**
  * Represents an in-app product's listing details.
  */
@@ -33,6 +31,8 @@ public class SkuDetails {
 	String mPriceCurrencyCode;
 	String mTitle;
 	String mDescription;
+	String mSubscriptionPeriod;
+	long mPriceAmountMicros;
 	String mJson;
 
 	public SkuDetails(String jsonSkuDetails) throws JSONException {
@@ -49,6 +49,8 @@ public class SkuDetails {
 		mTitle = o.optString("title");
 		mDescription = o.optString("description");
 		mPriceCurrencyCode = o.optString("price_currency_code");
+		mSubscriptionPeriod = o.optString("subscriptionPeriod");
+		mPriceAmountMicros = o.has("price_amount_micros") ? o.optLong("price_amount_micros") : parsePriceMicros(mPrice);
 	}
 
 	public String getSku() { return mSku; }
@@ -57,6 +59,43 @@ public class SkuDetails {
 	public String getTitle() { return mTitle; }
 	public String getDescription() { return mDescription; }
 	public String getPriceCurrencyCode() { return mPriceCurrencyCode; }
+	public String getSubscriptionPeriod() { return mSubscriptionPeriod; }
+
+	/**
+	 * @return price in millionths of the currency unit, e.g. 1990000 for "$1.99"
+	 */
+	public long getPriceAmountMicros() { return mPriceAmountMicros; }
+
+	/**
+	 * Parses a formatted price such as "$1,299.99" or "1.299,99 EUR" for responses without price_amount_micros.
+	 * A separator followed by one or two digits is taken as the decimal separator.
+	 */
+	static long parsePriceMicros(String price) {
+		if (price == null)
+			return 0;
+		StringBuilder number = new StringBuilder();
+		for (int i = 0; i < price.length(); i++) {
+			char c = price.charAt(i);
+			if ((c >= '0' && c <= '9') || c == '.' || c == ',')
+				number.append(c);
+		}
+		int separator = Math.max(number.lastIndexOf("."), number.lastIndexOf(","));
+		int fractionLength = separator >= 0 ? number.length() - separator - 1 : 0;
+		long units = 0;
+		long micros = 0;
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (c < '0' || c > '9')
+				continue;
+			if (fractionLength > 0 && fractionLength <= 2 && i > separator) {
+				micros += (c - '0') * (i == separator + 1 ? 100000L : 10000L);
+			}
+			else {
+				units = units * 10 + (c - '0');
+			}
+		}
+		return units * 1000000L + micros;
+	}
 
 	public String getPriceCurrencySymbole() {
 		Pattern mPattern = Pattern.compile("^[0-9]?$");
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-memory catalog of SKU details returned by getSkuDetails, keyed by item type and product id.
+ * Filled by warm-up prefetch and regular queries. Entries older than the time-to-live are not
+ * returned, so prices changed in the developer console are fetched again.
+ */
+class SkuDetailsCache {
+    public static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000L;
+
+    private static class Entry {
+        final SkuDetails details;
+        final long fetchedAt;
+
+        Entry(SkuDetails details, long fetchedAt) {
+            this.details = details;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private HashMap<String, Entry> data;
+    private long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    public SkuDetailsCache() {
+        data = new HashMap<String, Entry>();
+    }
+
+    private static String getKey(String itemType, String productId) {
+        return itemType + ":" + productId;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @param millis how long fetched details are returned, 0 or less disables caching
+     */
+    public synchronized void setTtl(long millis) {
+        ttlMillis = millis;
+    }
+
+    private boolean isFresh(Entry entry) {
+        return entry != null && now() - entry.fetchedAt < ttlMillis;
+    }
+
+    public synchronized void put(String itemType, SkuDetails details) {
+        data.put(getKey(itemType, details.getSku()), new Entry(details, now()));
+    }
+
+    /**
+     * @return details fetched within the time-to-live, or null
+     */
+    public synchronized SkuDetails get(String itemType, String productId) {
+        Entry entry = data.get(getKey(itemType, productId));
+        return isFresh(entry) ? entry.details : null;
+    }
+
+    /**
+     * @return last fetched details regardless of their age, for data that does not change, e.g. billing periods
+     */
+    public synchronized SkuDetails peek(String itemType, String productId) {
+        Entry entry = data.get(getKey(itemType, productId));
+        return entry != null ? entry.details : null;
+    }
+
+    /**
+     * Returns details for all requested products in request order,
+     * or null if at least one of them is not cached or has expired.
+     */
+    public synchronized List<SkuDetails> getAll(String itemType, List<String> productIds) {
+        List<SkuDetails> result = new ArrayList<SkuDetails>(productIds.size());
+        for (String productId : productIds) {
+            Entry entry = data.get(getKey(itemType, productId));
+            if (!isFresh(entry))
+                return null;
+            result.add(entry.details);
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        data.clear();
+    }
+}
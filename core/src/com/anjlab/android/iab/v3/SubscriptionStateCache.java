@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists purchase time and auto-renew state of owned subscriptions,
+ * together with the time they were last refreshed from Google Play.
+ * Like {@link BillingCache}, loading can be deferred; every accessor loads the states first
+ * if that has not happened yet.
+ */
+public class SubscriptionStateCache {
+    private static final String LOG_TAG = "iabv3.subscriptions";
+    private static final String REFRESHED_AT_KEY = "refreshedAt";
+    private static final String STATES_KEY = "states";
+    private static final String PURCHASE_TIME_KEY = "purchaseTime";
+    private static final String AUTO_RENEWING_KEY = "autoRenewing";
+
+    public static class State {
+        public long purchaseTime;
+        public boolean autoRenewing;
+
+        public State(long purchaseTime, boolean autoRenewing) {
+            this.purchaseTime = purchaseTime;
+            this.autoRenewing = autoRenewing;
+        }
+    }
+
+    private HashMap<String, State> data;
+    private BillingStorage storage;
+    private long refreshedAt;
+    private String cacheKey;
+    private boolean loaded;
+
+    public SubscriptionStateCache(BillingStorage storage, String key) {
+        this(storage, key, false);
+    }
+
+    /**
+     * @param deferLoad true to skip reading and parsing the storage until {@link #load()} or the first access
+     */
+    public SubscriptionStateCache(BillingStorage storage, String key, boolean deferLoad) {
+        this.storage = storage;
+        data = new HashMap<String, State>();
+        cacheKey = key;
+        if (!deferLoad)
+            load();
+    }
+
+    private String getPreferencesCacheKey() {
+        return SubscriptionStateCache.class.getPackage().getName() + cacheKey;
+    }
+
+    /**
+     * Reads the states from the storage unless that was already done.
+     */
+    public synchronized void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        String json = storage.loadString(getPreferencesCacheKey(), "");
+        if (json == null || json.length() == 0)
+            return;
+        try {
+            JSONObject root = new JSONObject(json);
+            refreshedAt = root.optLong(REFRESHED_AT_KEY, 0);
+            JSONObject states = root.optJSONObject(STATES_KEY);
+            if (states == null)
+                return;
+            Iterator<?> keys = states.keys();
+            while (keys.hasNext()) {
+                String productId = (String) keys.next();
+                JSONObject state = states.getJSONObject(productId);
+                data.put(productId, new State(state.optLong(PURCHASE_TIME_KEY, 0), state.optBoolean(AUTO_RENEWING_KEY, true)));
+            }
+        }
+        catch (JSONException e) {
+            BillingLog.e(LOG_TAG, e.toString());
+        }
+    }
+
+    private void flush() {
+        try {
+            JSONObject states = new JSONObject();
+            for (Map.Entry<String, State> entry : data.entrySet()) {
+                JSONObject state = new JSONObject();
+                state.put(PURCHASE_TIME_KEY, entry.getValue().purchaseTime);
+                state.put(AUTO_RENEWING_KEY, entry.getValue().autoRenewing);
+                states.put(entry.getKey(), state);
+            }
+            JSONObject root = new JSONObject();
+            root.put(REFRESHED_AT_KEY, refreshedAt);
+            root.put(STATES_KEY, states);
+            storage.saveString(getPreferencesCacheKey(), root.toString());
+        }
+        catch (JSONException e) {
+            BillingLog.e(LOG_TAG, e.toString());
+        }
+    }
+
+    /**
+     * Replaces all states with the ones just loaded from Google Play.
+     */
+    public synchronized void update(Map<String, State> states, long refreshTime) {
+        loaded = true;
+        data.clear();
+        data.putAll(states);
+        refreshedAt = refreshTime;
+        flush();
+    }
+
+    /**
+     * Adds or replaces the state of a single subscription, e.g. one just purchased,
+     * without changing the time of the last refresh.
+     */
+    public synchronized void put(String productId, State state) {
+        load();
+        data.put(productId, state);
+        flush();
+    }
+
+    /**
+     * Records a refresh that found the subscriptions unchanged.
+     */
+    public synchronized void setRefreshedAt(long refreshTime) {
+        load();
+        refreshedAt = refreshTime;
+        flush();
+    }
+
+    public synchronized State get(String productId) {
+        load();
+        return data.get(productId);
+    }
+
+    public synchronized List<String> getContents() {
+        load();
+        return new ArrayList<String>(data.keySet());
+    }
+
+    /**
+     * @return time of the last refresh from Google Play, in milliseconds since epoch
+     */
+    public synchronized long getRefreshedAt() {
+        load();
+        return refreshedAt;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Base64DecoderTest {
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * Reference encoder, the library only needs to decode.
+     */
+    static String encode(byte[] data) {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int block = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length)
+                block |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length)
+                block |= data[i + 2] & 0xff;
+            output.append(ALPHABET.charAt((block >> 18) & 0x3f));
+            output.append(ALPHABET.charAt((block >> 12) & 0x3f));
+            output.append(i + 1 < data.length ? ALPHABET.charAt((block >> 6) & 0x3f) : '=');
+            output.append(i + 2 < data.length ? ALPHABET.charAt(block & 0x3f) : '=');
+        }
+        return output.toString();
+    }
+
+    private static String decode(String input) throws Exception {
+        return new String(Base64Decoder.decode(input), "US-ASCII");
+    }
+
+    @Test
+    public void decodesPaddedInput() throws Exception {
+        assertEquals("Man", decode("TWFu"));
+        assertEquals("Ma", decode("TWE="));
+        assertEquals("M", decode("TQ=="));
+        assertEquals("", decode(""));
+    }
+
+    @Test
+    public void acceptsMissingPaddingAndWhitespace() throws Exception {
+        assertEquals("Ma", decode("TWE"));
+        assertEquals("Man is", decode("TWFu\n IGlz\r\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCharactersOutsideOfTheAlphabet() {
+        Base64Decoder.decode("TW*u");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonAsciiCharacters() {
+        Base64Decoder.decode("TW\u00e9u");
+    }
+
+    @Test
+    public void decodesWhatTheReferenceEncoderWrites() {
+        Random random = new Random(42);
+        for (int length = 0; length < 300; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertTrue("length " + length, Arrays.equals(data, Base64Decoder.decode(encode(data))));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applying full purchase lists with {@link BillingCache#replace(Map, int)} while products are
+ * purchased and consumed, the way BillingProcessor restores purchases.
+ */
+public class BillingCacheReplaceTest {
+
+    /**
+     * Stand-in for the billing service: owned products and their tokens.
+     */
+    private static class FakeBillingService {
+        private final HashMap<String, String> owned = new HashMap<String, String>();
+        private int nextToken;
+
+        synchronized String purchase(String productId) {
+            if (owned.containsKey(productId))
+                return null;
+            String token = "token" + nextToken++;
+            owned.put(productId, token);
+            return token;
+        }
+
+        synchronized boolean consume(String productId) {
+            return owned.remove(productId) != null;
+        }
+
+        synchronized Map<String, String> getPurchases() {
+            return new HashMap<String, String>(owned);
+        }
+    }
+
+    private BillingCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new BillingCache(new MemoryBillingStorage(), ".products.test");
+    }
+
+    @Test
+    public void staleListDoesNotResurrectAConsumedProduct() {
+        cache.put("sku1", "token1");
+        int fetchedAt = cache.getVersion();
+        Map<String, String> fetched = Collections.singletonMap("sku1", "token1");
+        cache.remove("sku1");
+
+        assertTrue(cache.replace(fetched, fetchedAt));
+        assertFalse(cache.includesProduct("sku1"));
+    }
+
+    @Test
+    public void staleListDoesNotDropANewPurchase() {
+        int fetchedAt = cache.getVersion();
+        cache.put("sku2", "token2");
+
+        assertTrue(cache.replace(Collections.singletonMap("sku1", "token1"), fetchedAt));
+        assertEquals("token1", cache.getProductPurchaseToken("sku1"));
+        assertEquals("token2", cache.getProductPurchaseToken("sku2"));
+    }
+
+    @Test
+    public void olderListIsNotAppliedAfterANewerOne() {
+        int olderFetch = cache.getVersion();
+        cache.put("sku1", "token1");
+        int newerFetch = cache.getVersion();
+
+        assertTrue(cache.replace(Collections.singletonMap("sku1", "token1"), newerFetch));
+        assertFalse(cache.replace(new HashMap<String, String>(), olderFetch));
+        assertTrue(cache.includesProduct("sku1"));
+    }
+
+    @Test
+    public void listOlderThanTheMutationLogIsRejected() {
+        int fetchedAt = cache.getVersion();
+        for (int i = 0; i < 100; i++)
+            cache.put("sku" + i, "token" + i, false);
+
+        assertFalse(cache.replace(new HashMap<String, String>(), fetchedAt));
+        assertEquals(100, cache.getContents().size());
+        assertTrue(cache.replace(new HashMap<String, String>(), cache.getVersion()));
+        assertTrue(cache.getContents().isEmpty());
+    }
+
+    @Test
+    public void replacePersistsTheResult() {
+        MemoryBillingStorage storage = new MemoryBillingStorage();
+        BillingCache cache = new BillingCache(storage, ".products.test");
+        cache.put("old", "token0");
+        assertTrue(cache.replace(Collections.singletonMap("sku1", "token1"), cache.getVersion()));
+        assertEquals(Collections.singletonMap("sku1", "token1"), new BillingCache(storage, ".products.test").getEntries());
+        assertNull(new BillingCache(storage, ".products.test").getProductPurchaseToken("old"));
+    }
+
+    @Test
+    public void concurrentRestoresKeepTheCacheInSyncWithTheService() throws Exception {
+        final FakeBillingService service = new FakeBillingService();
+        final int products = 8;
+        final int iterations = 2000;
+        // fewer stripes than products, as in BillingProcessor some products share a lock
+        final StripedLock productLocks = new StripedLock(products / 2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean mutating = new AtomicBoolean(true);
+        List<Thread> mutators = new ArrayList<Thread>();
+        List<Thread> restorers = new ArrayList<Thread>();
+
+        // purchase and consume flows: service first, then the cache, under the product's striped lock
+        for (int t = 0; t < 4; t++) {
+            final long seed = t;
+            mutators.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    await(start);
+                    for (int i = 0; i < iterations; i++) {
+                        int product = random.nextInt(products);
+                        String productId = "sku" + product;
+                        Lock lock = productLocks.get(productId);
+                        lock.lock();
+                        try {
+                            if (random.nextBoolean()) {
+                                String token = service.purchase(productId);
+                                if (token != null)
+                                    cache.put(productId, token, false);
+                            }
+                            else if (service.consume(productId)) {
+                                cache.remove(productId);
+                            }
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        // restores: read the version, fetch the list, apply it after a delay like the one of an IPC
+        for (int t = 0; t < 3; t++) {
+            restorers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (mutating.get()) {
+                        int fetchedAt = cache.getVersion();
+                        Map<String, String> purchases = service.getPurchases();
+                        try {
+                            Thread.sleep(1);
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        cache.replace(purchases, fetchedAt);
+                    }
+                }
+            }));
+        }
+        List<Thread> threads = new ArrayList<Thread>(mutators);
+        threads.addAll(restorers);
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread thread, Throwable e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : mutators)
+            thread.join();
+        mutating.set(false);
+        for (Thread thread : restorers)
+            thread.join();
+
+        assertNull(failure.get());
+        assertEquals(service.getPurchases(), cache.getEntries());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
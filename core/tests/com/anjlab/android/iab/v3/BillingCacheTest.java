@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BillingCacheTest {
+    private static final String KEY = ".products.test";
+
+    private MemoryBillingStorage storage;
+
+    @Before
+    public void setUp() {
+        storage = new MemoryBillingStorage();
+    }
+
+    @Test
+    public void storesPurchaseTokens() {
+        BillingCache cache = new BillingCache(storage, KEY);
+        assertTrue(cache.put("sku1", "token1"));
+        assertTrue(cache.includesProduct("sku1"));
+        assertEquals("token1", cache.getProductPurchaseToken("sku1"));
+        assertFalse(cache.includesProduct("sku2"));
+        assertNull(cache.getProductPurchaseToken("sku2"));
+    }
+
+    @Test
+    public void persistsChangesToTheStorage() {
+        BillingCache cache = new BillingCache(storage, KEY);
+        cache.put("sku1", "token1");
+        cache.put("sku2", "token2");
+        cache.remove("sku1");
+
+        BillingCache reloaded = new BillingCache(storage, KEY);
+        assertEquals(Collections.singletonList("sku2"), reloaded.getContents());
+        assertEquals("token2", reloaded.getProductPurchaseToken("sku2"));
+    }
+
+    @Test
+    public void keepsCachesWithDifferentKeysApart() {
+        new BillingCache(storage, KEY).put("sku1", "token1");
+        assertTrue(new BillingCache(storage, ".subscriptions.test").getContents().isEmpty());
+    }
+
+    @Test
+    public void deferredCacheLoadsOnFirstAccess() {
+        new BillingCache(storage, KEY).put("sku1", "token1");
+        BillingCache deferred = new BillingCache(storage, KEY, true);
+        assertTrue(deferred.includesProduct("sku1"));
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        BillingCache cache = new BillingCache(storage, KEY);
+        cache.put("sku1", "token1");
+        cache.put("sku2", "token2");
+        assertTrue(cache.clear());
+        assertTrue(new BillingCache(storage, KEY).getContents().isEmpty());
+    }
+
+    @Test
+    public void unflushedPutsArePersistedByFlush() {
+        BillingCache cache = new BillingCache(storage, KEY);
+        cache.put("sku1", "token1", false);
+        cache.put("sku2", "token2", false);
+        assertTrue(new BillingCache(storage, KEY).getContents().isEmpty());
+        assertTrue(cache.flush());
+        assertEquals(2, new BillingCache(storage, KEY).getContents().size());
+    }
+
+    @Test
+    public void entriesAreACopy() {
+        BillingCache cache = new BillingCache(storage, KEY);
+        cache.put("sku1", "token1");
+        Map<String, String> entries = cache.getEntries();
+        cache.put("sku2", "token2");
+        assertEquals(Collections.singletonMap("sku1", "token1"), entries);
+        assertEquals(2, cache.getEntries().size());
+    }
+}
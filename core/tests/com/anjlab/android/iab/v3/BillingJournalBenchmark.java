@@ -0,0 +1,65 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures fsync'd journal throughput: begin + commit pairs as written by every purchase,
+ * and replay of a journal that was left with pending entries.
+ * Numbers depend on the storage device, run it on the hardware you care about:
+ * <pre>gradle :core:benchmark -Pbenchmark=BillingJournalBenchmark</pre>
+ */
+public class BillingJournalBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int mutations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        File file = File.createTempFile("iabv3", ".journal");
+        try {
+            BillingJournal journal = new BillingJournal(file);
+            // warm up
+            for (int i = 0; i < 50; i++)
+                journal.commit(journal.beginPut(".products", "sku" + i, "token" + i));
+            journal.reset();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < mutations; i++)
+                journal.commit(journal.beginPut(".products", "sku" + i, "token" + i));
+            long elapsed = System.nanoTime() - start;
+            report("begin+commit", mutations, elapsed);
+
+            journal.reset();
+            for (int i = 0; i < mutations; i++)
+                journal.beginPut(".products", "sku" + i, "token" + i);
+            journal.close();
+
+            start = System.nanoTime();
+            int pending = new BillingJournal(file).readPending().size();
+            elapsed = System.nanoTime() - start;
+            report("readPending(" + pending + " pending)", 1, elapsed);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private static void report(String name, int operations, long elapsedNanos) {
+        double millis = elapsedNanos / 1000000.0;
+        System.out.println(String.format("%-32s %8d ops %10.2f ms %10.1f ops/s",
+                name, operations, millis, operations * 1000.0 / millis));
+    }
+}
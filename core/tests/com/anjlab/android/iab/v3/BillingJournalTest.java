@@ -0,0 +1,212 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BillingJournalTest {
+
+    private static class FailingStorage extends MemoryBillingStorage {
+        boolean failing;
+
+        @Override
+        public synchronized boolean saveString(String key, String value) {
+            return !failing && super.saveString(key, value);
+        }
+    }
+
+    private File file;
+    private BillingJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("iabv3", ".journal");
+        journal = new BillingJournal(file);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void committedEntriesAreNotPending() {
+        long put = journal.beginPut(".products", "sku1", "token1");
+        journal.commit(put);
+        long consume = journal.beginConsume(".products", "sku2", "token2");
+        journal.markConsumed(consume);
+
+        List<BillingJournal.Entry> pending = new BillingJournal(file).readPending();
+        assertEquals(1, pending.size());
+        assertEquals(BillingJournal.OP_CONSUME, pending.get(0).op);
+        assertEquals("sku2", pending.get(0).productId);
+        assertTrue(pending.get(0).consumed);
+    }
+
+    @Test
+    public void resetDropsPendingEntries() {
+        journal.beginPut(".products", "sku1", "token1");
+        journal.reset();
+        assertTrue(journal.readPending().isEmpty());
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        journal.beginPut(".products", "sku1", "token1");
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+        assertTrue(new BillingJournal(file).readPending().isEmpty());
+    }
+
+    @Test
+    public void closedJournalDoesNotReopenTheFile() {
+        journal.commit(journal.beginPut(".products", "sku1", "token1"));
+        long length = file.length();
+        journal.close();
+
+        assertEquals(-1, journal.beginPut(".products", "sku2", "token2"));
+        journal.reset();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void persistedPurchaseIsCommitted() {
+        BillingCache cache = new BillingCache(new MemoryBillingStorage(), ".products");
+        assertTrue(journal.put(cache, "sku1", "token1"));
+        assertTrue(cache.includesProduct("sku1"));
+        assertTrue(journal.readPending().isEmpty());
+    }
+
+    @Test
+    public void unpersistedPurchaseIsReplayedOnTheNextStart() {
+        FailingStorage storage = new FailingStorage();
+        storage.failing = true;
+        assertFalse(journal.put(new BillingCache(storage, ".products"), "sku1", "token1"));
+        assertEquals(1, journal.readPending().size());
+
+        storage.failing = false;
+        BillingCache restarted = new BillingCache(storage, ".products");
+        assertFalse(restarted.includesProduct("sku1"));
+        assertTrue(new BillingJournal(file).replay(restarted, new BillingCache(storage, ".subscriptions")).applied);
+        assertTrue(restarted.includesProduct("sku1"));
+        assertTrue(new BillingCache(storage, ".products").includesProduct("sku1"));
+        assertTrue(journal.readPending().isEmpty());
+    }
+
+    @Test
+    public void unpersistedConsumptionIsReplayedOnTheNextStart() {
+        FailingStorage storage = new FailingStorage();
+        BillingCache cache = new BillingCache(storage, ".products");
+        assertTrue(journal.put(cache, "sku1", "token1"));
+        storage.failing = true;
+        long consume = journal.beginConsume(".products", "sku1", "token1");
+        assertFalse(journal.completeConsume(consume, cache, "sku1"));
+        List<BillingJournal.Entry> pending = journal.readPending();
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).consumed);
+
+        storage.failing = false;
+        BillingCache restarted = new BillingCache(storage, ".products");
+        assertTrue(restarted.includesProduct("sku1"));
+        BillingJournal.Replay replay = new BillingJournal(file).replay(restarted);
+        assertTrue(replay.applied);
+        assertFalse(replay.unconfirmedConsumption);
+        assertFalse(restarted.includesProduct("sku1"));
+        assertTrue(journal.readPending().isEmpty());
+    }
+
+    @Test
+    public void unconfirmedConsumptionIsReportedInsteadOfReplayed() {
+        BillingCache cache = new BillingCache(new MemoryBillingStorage(), ".products");
+        assertTrue(journal.put(cache, "sku1", "token1"));
+        journal.beginConsume(".products", "sku1", "token1");
+
+        BillingJournal.Replay replay = new BillingJournal(file).replay(cache);
+        assertFalse(replay.applied);
+        assertTrue(replay.unconfirmedConsumption);
+        assertTrue(cache.includesProduct("sku1"));
+    }
+
+    @Test
+    public void replayThatCannotPersistKeepsTheJournal() {
+        FailingStorage storage = new FailingStorage();
+        storage.failing = true;
+        assertFalse(journal.put(new BillingCache(storage, ".products"), "sku1", "token1"));
+
+        assertTrue(new BillingJournal(file).replay(new BillingCache(storage, ".products")).applied);
+        assertEquals(1, journal.readPending().size());
+    }
+
+    @Test
+    public void openedJournalIsSharedUntilEveryoneClosedIt() {
+        BillingJournal first = BillingJournal.open(file);
+        BillingJournal second = BillingJournal.open(file);
+        assertSame(first, second);
+
+        long entry = first.beginPut(".products", "sku1", "token1");
+        first.close();
+        assertTrue(second.beginPut(".products", "sku2", "token2") > entry);
+        second.close();
+        assertEquals(-1, second.beginPut(".products", "sku3", "token3"));
+
+        BillingJournal reopened = BillingJournal.open(file);
+        assertNotSame(first, reopened);
+        reopened.close();
+    }
+
+    @Test
+    public void sharedJournalIsReplayedOnlyOnce() {
+        FailingStorage storage = new FailingStorage();
+        storage.failing = true;
+        assertFalse(journal.put(new BillingCache(storage, ".products"), "sku1", "token1"));
+        storage.failing = false;
+
+        BillingJournal first = BillingJournal.open(file);
+        BillingJournal second = BillingJournal.open(file);
+        try {
+            assertTrue(first.replay(new BillingCache(storage, ".products")).applied);
+            long inProgress = first.beginConsume(".products", "sku1", "token1");
+            first.markConsumed(inProgress);
+
+            BillingCache cache = new BillingCache(storage, ".products");
+            assertFalse(second.replay(cache).applied);
+            assertTrue(cache.includesProduct("sku1"));
+            List<BillingJournal.Entry> pending = second.readPending();
+            assertEquals(1, pending.size());
+            assertEquals(inProgress, pending.get(0).sequence);
+        }
+        finally {
+            first.close();
+            second.close();
+        }
+    }
+}
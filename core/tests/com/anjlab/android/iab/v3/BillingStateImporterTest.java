@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BillingStateImporterTest {
+    private MemoryBillingStorage storage;
+    private BillingCache products;
+    private BillingCache subscriptions;
+
+    @Before
+    public void setUp() {
+        storage = new MemoryBillingStorage();
+        products = new BillingCache(storage, ".products.test");
+        subscriptions = new BillingCache(storage, ".subscriptions.test");
+    }
+
+    private int importState(String ndjson) throws IOException {
+        return new BillingStateImporter(products, subscriptions).read(new ByteArrayInputStream(ndjson.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void readsWhatTheExporterWrites() throws IOException {
+        MemoryBillingStorage sourceStorage = new MemoryBillingStorage();
+        BillingCache sourceProducts = new BillingCache(sourceStorage, ".products.source");
+        BillingCache sourceSubscriptions = new BillingCache(sourceStorage, ".subscriptions.source");
+        sourceProducts.put("sku1", "token1");
+        sourceProducts.put("sku2", "token2");
+        sourceSubscriptions.put("monthly", "token3");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BillingStateExporter exporter = new BillingStateExporter(output);
+        exporter.writeCache(BillingStateExporter.KIND_PRODUCT, sourceProducts);
+        exporter.writeCache(BillingStateExporter.KIND_SUBSCRIPTION, sourceSubscriptions);
+        exporter.writePurchase(Constants.PRODUCT_TYPE_SUBSCRIPTION,
+                "{\"productId\":\"yearly\",\"purchaseToken\":\"token4\"}", "signature");
+        exporter.flush();
+        assertEquals(4, exporter.getRecordCount());
+
+        assertEquals(4, importState(output.toString("UTF-8")));
+        assertEquals(sourceProducts.getEntries(), new BillingCache(storage, ".products.test").getEntries());
+        assertEquals("token3", new BillingCache(storage, ".subscriptions.test").getProductPurchaseToken("monthly"));
+        assertEquals("token4", new BillingCache(storage, ".subscriptions.test").getProductPurchaseToken("yearly"));
+    }
+
+    @Test
+    public void malformedRecordLeavesTheCachesUntouched() throws IOException {
+        products.put("owned", "token0");
+        try {
+            importState("{\"kind\":\"product\",\"productId\":\"sku1\",\"purchaseToken\":\"token1\"}\n" +
+                    "{\"kind\":\"subscription\",\"productId\":\"monthly\",\"purchaseToken\":\"token2\"}\n" +
+                    "{\"kind\":\"product\",\"productId\":\n");
+            fail("a malformed record must fail the import");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("line 3"));
+        }
+        assertEquals(1, products.getContents().size());
+        assertTrue(subscriptions.getContents().isEmpty());
+        assertEquals(1, new BillingCache(storage, ".products.test").getContents().size());
+    }
+
+    @Test
+    public void skipsUnknownRecordsAndBlankLines() throws IOException {
+        assertEquals(1, importState("\n{\"kind\":\"future\"}\n{\"kind\":\"product\",\"productId\":\"sku1\",\"purchaseToken\":\"t\"}\n"));
+        assertEquals("t", products.getProductPurchaseToken("sku1"));
+    }
+}
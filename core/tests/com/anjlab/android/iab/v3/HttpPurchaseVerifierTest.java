@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs HttpPurchaseVerifier against a local stand-in backend that accepts receipts
+ * whose purchase data contains "good".
+ */
+public class HttpPurchaseVerifierTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private HttpPurchaseVerifier verifier;
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long responseDelayMillis;
+    private volatile int droppedVerdicts;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/verify", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int concurrent = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    if (concurrent > maxInFlight.get())
+                        maxInFlight.set(concurrent);
+                }
+                try {
+                    JSONArray receipts = new JSONObject(readBody(exchange.getRequestBody())).getJSONArray("receipts");
+                    batchSizes.add(receipts.length());
+                    if (responseDelayMillis > 0)
+                        Thread.sleep(responseDelayMillis);
+                    JSONArray verdicts = new JSONArray();
+                    for (int i = droppedVerdicts; i < receipts.length(); i++)
+                        verdicts.put(receipts.getJSONObject(i).getString("purchaseData").contains("good"));
+                    byte[] response = new JSONObject().put("verdicts", verdicts).toString().getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, response.length);
+                    OutputStream output = exchange.getResponseBody();
+                    output.write(response);
+                    output.close();
+                }
+                catch (Exception e) {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (verifier != null)
+            verifier.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private HttpPurchaseVerifier createVerifier(int maxBatchSize, int maxConcurrentRequests) throws IOException {
+        URL endpoint = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/verify");
+        verifier = new HttpPurchaseVerifier(endpoint, maxBatchSize, maxConcurrentRequests);
+        return verifier;
+    }
+
+    private static String readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+            body.write(buffer, 0, read);
+        return body.toString("UTF-8");
+    }
+
+    private static List<PurchaseVerifier.Receipt> receipts(String... purchaseData) {
+        ArrayList<PurchaseVerifier.Receipt> receipts = new ArrayList<PurchaseVerifier.Receipt>();
+        for (String data : purchaseData)
+            receipts.add(new PurchaseVerifier.Receipt(data, "signature-" + data));
+        return receipts;
+    }
+
+    private static void assertVerdicts(boolean[] expected, boolean[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    @Test
+    public void splitsReceiptsIntoBatchesAndKeepsTheirOrder() throws Exception {
+        boolean[] verdicts = createVerifier(2, 1).verify(receipts("good-1", "bad-2", "good-3", "bad-4", "good-5"));
+
+        assertVerdicts(new boolean[] { true, false, true, false, true }, verdicts);
+        assertEquals(3, batchSizes.size());
+        Collections.sort(batchSizes);
+        assertEquals(Integer.valueOf(1), batchSizes.get(0));
+        assertEquals(Integer.valueOf(2), batchSizes.get(1));
+        assertEquals(Integer.valueOf(2), batchSizes.get(2));
+    }
+
+    @Test
+    public void boundsConcurrentRequests() throws Exception {
+        responseDelayMillis = 100;
+        createVerifier(1, 2).verify(receipts("good-1", "good-2", "good-3", "good-4", "good-5", "good-6"));
+
+        assertEquals(6, batchSizes.size());
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() <= 2);
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void cachesAcceptedReceiptsOnly() throws Exception {
+        createVerifier(10, 1);
+        verifier.verify(receipts("good-1", "bad-2"));
+        assertEquals(1, batchSizes.size());
+
+        assertVerdicts(new boolean[] { true, false }, verifier.verify(receipts("good-1", "bad-2")));
+        assertEquals(2, batchSizes.size());
+        assertEquals(Integer.valueOf(1), batchSizes.get(1));
+
+        assertVerdicts(new boolean[] { true }, verifier.verify(receipts("good-1")));
+        assertEquals(2, batchSizes.size());
+    }
+
+    @Test
+    public void verifiesReceiptsWithTheSameTokenButDifferentContentsAgain() throws Exception {
+        createVerifier(10, 1);
+        String purchaseData = "{\"purchaseToken\":\"token\",\"note\":\"good\"}";
+        assertVerdicts(new boolean[] { true },
+                verifier.verify(Collections.singletonList(new PurchaseVerifier.Receipt(purchaseData, "signature"))));
+
+        String forged = "{\"purchaseToken\":\"token\",\"note\":\"forged\"}";
+        assertVerdicts(new boolean[] { false },
+                verifier.verify(Collections.singletonList(new PurchaseVerifier.Receipt(forged, "signature"))));
+        verifier.verify(Collections.singletonList(new PurchaseVerifier.Receipt(purchaseData, "other signature")));
+        assertEquals(3, batchSizes.size());
+    }
+
+    @Test
+    public void rejectsResponsesWithAWrongNumberOfVerdicts() throws Exception {
+        droppedVerdicts = 1;
+        try {
+            createVerifier(10, 1).verify(receipts("good-1", "good-2"));
+            fail("a verdict count mismatch must fail the verification");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("Expected 2 verdicts, got 1"));
+        }
+        // nothing was cached for the failed batch
+        droppedVerdicts = 0;
+        assertVerdicts(new boolean[] { true, true }, verifier.verify(receipts("good-1", "good-2")));
+        assertEquals(2, batchSizes.size());
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignaturePurchaseVerifierTest {
+    private static final String PURCHASE_DATA = "{\"productId\":\"premium\",\"purchaseToken\":\"token\"}";
+
+    private static KeyPair keyPair;
+    private static String publicKey;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        keyPair = generator.generateKeyPair();
+        publicKey = Base64DecoderTest.encode(keyPair.getPublic().getEncoded());
+    }
+
+    private static String sign(String data) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(data.getBytes());
+        return Base64DecoderTest.encode(signature.sign());
+    }
+
+    private static String verdicts(PurchaseVerifier verifier, PurchaseVerifier.Receipt... receipts) throws Exception {
+        return Arrays.toString(verifier.verify(Arrays.asList(receipts)));
+    }
+
+    @Test
+    public void acceptsOnlyCorrectlySignedReceipts() throws Exception {
+        String forged = PURCHASE_DATA.replace("premium", "gold");
+        String result = verdicts(new SignaturePurchaseVerifier(publicKey),
+                new PurchaseVerifier.Receipt(PURCHASE_DATA, sign(PURCHASE_DATA)),
+                new PurchaseVerifier.Receipt(forged, sign(PURCHASE_DATA)),
+                new PurchaseVerifier.Receipt(PURCHASE_DATA, null),
+                new PurchaseVerifier.Receipt(PURCHASE_DATA, "not base64!"));
+        assertEquals("[true, false, false, false]", result);
+    }
+
+    @Test
+    public void acceptsEverythingWithoutAKey() throws Exception {
+        assertEquals("[true, true]", verdicts(new SignaturePurchaseVerifier(null),
+                new PurchaseVerifier.Receipt(PURCHASE_DATA, null),
+                new PurchaseVerifier.Receipt(PURCHASE_DATA, "bad")));
+    }
+
+    @Test
+    public void rejectsEverythingWithAnInvalidKey() throws Exception {
+        SignaturePurchaseVerifier verifier = new SignaturePurchaseVerifier("AAAA");
+        assertEquals("[false]", verdicts(verifier, new PurchaseVerifier.Receipt(PURCHASE_DATA, sign(PURCHASE_DATA))));
+        assertEquals("[false]", verdicts(verifier, new PurchaseVerifier.Receipt(PURCHASE_DATA, sign(PURCHASE_DATA))));
+    }
+
+    @Test
+    public void verifiesLargeListsWithOneParsedKey() throws Exception {
+        List<PurchaseVerifier.Receipt> receipts = new ArrayList<PurchaseVerifier.Receipt>();
+        String signature = sign(PURCHASE_DATA);
+        for (int i = 0; i < 200; i++)
+            receipts.add(new PurchaseVerifier.Receipt(PURCHASE_DATA, signature));
+        boolean[] result = new SignaturePurchaseVerifier(publicKey).verify(receipts);
+        for (boolean verdict : result)
+            assertTrue(verdict);
+    }
+
+    @Test
+    public void securityVerifyPurchaseMatchesTheVerifier() throws Exception {
+        assertTrue(Security.verifyPurchase(publicKey, PURCHASE_DATA, sign(PURCHASE_DATA)));
+        assertFalse(Security.verifyPurchase(publicKey, PURCHASE_DATA, ""));
+    }
+}
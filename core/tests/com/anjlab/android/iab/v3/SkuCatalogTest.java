@@ -0,0 +1,132 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SkuCatalogTest {
+    private static final String INAPP = Constants.PRODUCT_TYPE_MANAGED;
+    private static final String SUBS = Constants.PRODUCT_TYPE_SUBSCRIPTION;
+
+    private SkuCatalog catalog;
+
+    @Before
+    public void setUp() throws JSONException {
+        catalog = new SkuCatalog();
+        catalog.update(Arrays.asList(
+                details(INAPP, "coins", 990000L, "USD"),
+                details(INAPP, "gems", 1990000L, "USD"),
+                details(INAPP, "chest", 1990000L, "EUR"),
+                details(SUBS, "monthly", 4990000L, "USD")));
+    }
+
+    private static SkuDetails details(String itemType, String sku, long micros, String currency) throws JSONException {
+        return new SkuDetails(itemType, String.format(
+                "{\"productId\":\"%s\",\"price_amount_micros\":%d,\"price_currency_code\":\"%s\"}", sku, micros, currency));
+    }
+
+    private static List<String> skus(List<SkuDetails> detailsList) {
+        ArrayList<String> skus = new ArrayList<String>();
+        for (SkuDetails details : detailsList)
+            skus.add(details.getSku());
+        return skus;
+    }
+
+    @Test
+    public void sortsByPriceThenKey() {
+        assertEquals(Arrays.asList("coins", "chest", "gems", "monthly"), skus(catalog.getSortedByPrice(null, null, true)));
+        assertEquals(Arrays.asList("monthly", "gems", "chest", "coins"), skus(catalog.getSortedByPrice(null, null, false)));
+    }
+
+    @Test
+    public void filtersByTypeAndCurrency() {
+        assertEquals(Arrays.asList("coins", "chest", "gems"), skus(catalog.getSortedByPrice(INAPP, null, true)));
+        assertEquals(Arrays.asList("coins", "gems", "monthly"), skus(catalog.getSortedByPrice(null, "USD", true)));
+        assertEquals(Arrays.asList("monthly"), skus(catalog.getSortedByPrice(SUBS, "USD", true)));
+        assertTrue(catalog.getSortedByPrice(SUBS, "EUR", true).isEmpty());
+    }
+
+    @Test
+    public void priceRangeIncludesBothBounds() {
+        assertEquals(Arrays.asList("chest", "gems"), skus(catalog.getInPriceRange(null, null, 1990000L, 1990000L, true)));
+        assertEquals(Arrays.asList("coins", "chest", "gems"), skus(catalog.getInPriceRange(null, null, 990000L, 1990000L, true)));
+        assertEquals(Arrays.asList("chest", "gems", "monthly"),
+                skus(catalog.getInPriceRange(null, null, 990001L, 4990000L, true)));
+        assertTrue(catalog.getInPriceRange(null, null, 1990001L, 4989999L, true).isEmpty());
+    }
+
+    @Test
+    public void priceRangeHandlesExtremeBounds() throws JSONException {
+        catalog.update(Arrays.asList(details(INAPP, "free", 0L, "USD"), details(INAPP, "whale", Long.MAX_VALUE, "USD")));
+        assertEquals(Arrays.asList("free", "coins", "chest", "gems", "monthly", "whale"),
+                skus(catalog.getInPriceRange(null, null, Long.MIN_VALUE, Long.MAX_VALUE, true)));
+        assertEquals(Arrays.asList("whale"), skus(catalog.getInPriceRange(null, null, Long.MAX_VALUE, Long.MAX_VALUE, true)));
+        assertEquals(Arrays.asList("free", "coins", "chest", "gems", "monthly"),
+                skus(catalog.getInPriceRange(null, null, Long.MIN_VALUE, Long.MAX_VALUE - 1, true)));
+        assertTrue(catalog.getInPriceRange(null, null, 5L, 4L, true).isEmpty());
+        assertTrue(catalog.getInPriceRange("unknown", null, Long.MIN_VALUE, Long.MAX_VALUE, true).isEmpty());
+    }
+
+    @Test
+    public void listsCurrenciesOfCatalogedProducts() {
+        assertEquals(Arrays.asList("EUR", "USD"), catalog.getCurrencies());
+    }
+
+    @Test
+    public void refreshedDetailsReplaceOnlyTheirEntry() throws JSONException {
+        int version = catalog.getVersion();
+        SkuDetails coins = catalog.get(INAPP, "coins");
+        catalog.update(Arrays.asList(details(INAPP, "coins", 990000L, "USD")));
+        assertSame(coins, catalog.get(INAPP, "coins"));
+        assertEquals(version, catalog.getVersion());
+
+        catalog.update(Arrays.asList(details(INAPP, "chest", 2990000L, "USD")));
+        assertEquals(version + 1, catalog.getVersion());
+        assertEquals(4, catalog.size());
+        assertEquals(2990000L, catalog.get(INAPP, "chest").getPriceAmountMicros());
+        assertEquals(Arrays.asList("coins", "gems", "chest", "monthly"), skus(catalog.getSortedByPrice(null, "USD", true)));
+        assertTrue(catalog.getSortedByPrice(null, "EUR", true).isEmpty());
+        assertEquals(Arrays.asList("USD"), catalog.getCurrencies());
+    }
+
+    @Test
+    public void productsAreKeyedByItemType() throws JSONException {
+        catalog.update(Arrays.asList(details(SUBS, "coins", 2990000L, "USD")));
+        assertEquals(5, catalog.size());
+        assertEquals(990000L, catalog.get(INAPP, "coins").getPriceAmountMicros());
+        assertEquals(2990000L, catalog.get(SUBS, "coins").getPriceAmountMicros());
+        assertNull(catalog.get(SUBS, "gems"));
+    }
+
+    @Test
+    public void clearEmptiesTheIndexes() {
+        catalog.clear();
+        assertEquals(0, catalog.size());
+        assertTrue(catalog.getSortedByPrice(null, null, true).isEmpty());
+        assertTrue(catalog.getCurrencies().isEmpty());
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SkuDetailsTest {
+
+    @Test
+    public void parsesGooglePlayResponse() throws JSONException {
+        SkuDetails details = new SkuDetails(Constants.PRODUCT_TYPE_SUBSCRIPTION,
+                "{\"productId\":\"monthly\",\"type\":\"subs\",\"price\":\"$4.99\",\"price_amount_micros\":4990000," +
+                "\"price_currency_code\":\"USD\",\"title\":\"Monthly\",\"description\":\"All features\"," +
+                "\"subscriptionPeriod\":\"P1M\"}");
+        assertEquals("monthly", details.getSku());
+        assertEquals("subs", details.getType());
+        assertEquals("$4.99", details.getPrice());
+        assertEquals(4990000L, details.getPriceAmountMicros());
+        assertEquals("USD", details.getPriceCurrencyCode());
+        assertEquals("Monthly", details.getTitle());
+        assertEquals("All features", details.getDescription());
+        assertEquals("P1M", details.getSubscriptionPeriod());
+    }
+
+    @Test
+    public void parsesFormattedPriceWithoutMicros() throws JSONException {
+        SkuDetails details = new SkuDetails("{\"productId\":\"coins\",\"price\":\"$1,299.99\"}");
+        assertEquals(1299990000L, details.getPriceAmountMicros());
+        assertEquals("$", details.getPriceCurrencySymbole());
+        assertEquals("1,299.99", details.getPriceNoCurrency());
+    }
+
+    @Test
+    public void parsesFormattedPrices() {
+        assertEquals(1990000L, SkuDetails.parsePriceMicros("$1.99"));
+        assertEquals(1299990000L, SkuDetails.parsePriceMicros("1.299,99 EUR"));
+        assertEquals(1500000L, SkuDetails.parsePriceMicros("1,5 zl"));
+        assertEquals(1000000000L, SkuDetails.parsePriceMicros("1,000 JPY"));
+        assertEquals(0L, SkuDetails.parsePriceMicros(null));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsMalformedJson() throws JSONException {
+        new SkuDetails("{\"productId\":");
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Measures how long the main thread spends from constructing the caches to the answer of the first
+ * isPurchased check, the way BillingProcessor does it:
+ * <ul>
+ * <li>all caches loaded eagerly by the constructor;</li>
+ * <li>loading deferred to the startup task, with the first check running it on the main thread
+ * because the loader thread did not get to it;</li>
+ * <li>loading deferred to the startup task on a loader thread, with the first check right away
+ * or after some other main-thread work (e.g. inflating the layout), waiting only for what is left.</li>
+ * </ul>
+ * Time spent on the other work is not counted. The background load time is reported as well.
+ * Storage is in memory, so the numbers cover parsing only, not the preferences file read.
+ * <pre>gradle :core:benchmark -Pbenchmark=StartupBenchmark</pre>
+ */
+public class StartupBenchmark {
+    private static final String PRODUCTS_KEY = ".products.cache.v2_4";
+    private static final String SUBSCRIPTIONS_KEY = ".subscriptions.cache.v2_4";
+    private static final String STATES_KEY = ".subscriptions.states.v2_4";
+    private static final long OTHER_WORK_NANOS = 2000000;
+
+    private static class Caches {
+        BillingCache products;
+        BillingCache subscriptions;
+        SubscriptionStateCache states;
+        FutureTask<Long> startup;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int runs = 200;
+        MemoryBillingStorage storage = new MemoryBillingStorage();
+        BillingCache products = new BillingCache(storage, PRODUCTS_KEY);
+        BillingCache subscriptions = new BillingCache(storage, SUBSCRIPTIONS_KEY);
+        HashMap<String, SubscriptionStateCache.State> states = new HashMap<String, SubscriptionStateCache.State>();
+        for (int i = 0; i < entries; i++) {
+            products.put("product" + i, "token-product-" + i + "-0123456789abcdef", false);
+            subscriptions.put("subscription" + i, "token-subscription-" + i + "-0123456789abcdef", false);
+            states.put("subscription" + i, new SubscriptionStateCache.State(1400000000000L + i, i % 2 == 0));
+        }
+        products.flush();
+        subscriptions.flush();
+        new SubscriptionStateCache(storage, STATES_KEY).update(states, System.currentTimeMillis());
+
+        // warm up all paths
+        for (int i = 0; i < runs; i++) {
+            firstCheck(storage, false, false, 0);
+            firstCheck(storage, true, false, 0);
+            firstCheck(storage, true, true, 0);
+        }
+
+        System.out.println(String.format("%d products, %d subscriptions, average of %d runs, main thread time to the first check",
+                entries, entries, runs));
+        measure("eager load", storage, false, false, 0, runs);
+        measure("deferred, loaded by the first check", storage, true, false, 0, runs);
+        measure("deferred, loader thread, check at once", storage, true, true, 0, runs);
+        measure(String.format("deferred, loader thread, check after %d us", OTHER_WORK_NANOS / 1000),
+                storage, true, true, OTHER_WORK_NANOS, runs);
+
+        long loadNanos = 0;
+        for (int i = 0; i < runs; i++) {
+            Caches caches = construct(storage, true);
+            caches.startup.run();
+            loadNanos += caches.startup.get();
+        }
+        System.out.println(String.format("%-48s %10.1f us", "background load", loadNanos / 1000.0 / runs));
+    }
+
+    private static void measure(String name, BillingStorage storage, boolean defer, boolean loaderThread,
+                                long otherWorkNanos, int runs) throws Exception {
+        long elapsed = 0;
+        for (int i = 0; i < runs; i++)
+            elapsed += firstCheck(storage, defer, loaderThread, otherWorkNanos);
+        System.out.println(String.format("%-48s %10.1f us", name, elapsed / 1000.0 / runs));
+    }
+
+    /**
+     * @return main-thread nanoseconds spent constructing the caches, waiting for them and checking a product
+     */
+    private static long firstCheck(BillingStorage storage, boolean defer, boolean loaderThread, long otherWorkNanos)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        Caches caches = construct(storage, defer);
+        Thread loader = null;
+        if (loaderThread) {
+            loader = new Thread(caches.startup, "iabv3-cache-load");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long workEnd = System.nanoTime() + otherWorkNanos;
+        while (System.nanoTime() < workEnd) {
+            // other main-thread work
+        }
+
+        start = System.nanoTime();
+        // BillingProcessor.awaitStartup: run the task unless the loader thread already took it, then wait
+        caches.startup.run();
+        try {
+            caches.startup.get();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        if (!caches.products.includesProduct("product0"))
+            throw new IllegalStateException("product0 is not cached");
+        elapsed += System.nanoTime() - start;
+        if (loader != null)
+            loader.join();
+        return elapsed;
+    }
+
+    private static Caches construct(BillingStorage storage, boolean defer) {
+        final Caches caches = new Caches();
+        caches.products = new BillingCache(storage, PRODUCTS_KEY, defer);
+        caches.subscriptions = new BillingCache(storage, SUBSCRIPTIONS_KEY, defer);
+        caches.states = new SubscriptionStateCache(storage, STATES_KEY, defer);
+        caches.startup = new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                long start = System.nanoTime();
+                caches.products.load();
+                caches.subscriptions.load();
+                caches.states.load();
+                return System.nanoTime() - start;
+            }
+        });
+        return caches;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionStateCacheTest {
+    private static final String KEY = ".subscriptions.states.test";
+
+    private static class CountingStorage extends MemoryBillingStorage {
+        int loads;
+
+        @Override
+        public synchronized String loadString(String key, String defValue) {
+            loads++;
+            return super.loadString(key, defValue);
+        }
+    }
+
+    private CountingStorage storage;
+
+    @Before
+    public void setUp() {
+        storage = new CountingStorage();
+    }
+
+    @Test
+    public void persistsStates() {
+        HashMap<String, SubscriptionStateCache.State> states = new HashMap<String, SubscriptionStateCache.State>();
+        states.put("monthly", new SubscriptionStateCache.State(1000L, true));
+        states.put("yearly", new SubscriptionStateCache.State(2000L, false));
+        new SubscriptionStateCache(storage, KEY).update(states, 5000L);
+
+        SubscriptionStateCache reloaded = new SubscriptionStateCache(storage, KEY);
+        assertEquals(5000L, reloaded.getRefreshedAt());
+        assertEquals(2, reloaded.getContents().size());
+        assertEquals(1000L, reloaded.get("monthly").purchaseTime);
+        assertTrue(reloaded.get("monthly").autoRenewing);
+        assertFalse(reloaded.get("yearly").autoRenewing);
+        assertNull(reloaded.get("weekly"));
+    }
+
+    @Test
+    public void deferredCacheReadsTheStorageOnFirstAccessOnly() {
+        new SubscriptionStateCache(storage, KEY).setRefreshedAt(7000L);
+        storage.loads = 0;
+
+        SubscriptionStateCache deferred = new SubscriptionStateCache(storage, KEY, true);
+        assertEquals(0, storage.loads);
+        assertEquals(7000L, deferred.getRefreshedAt());
+        deferred.getContents();
+        deferred.load();
+        assertEquals(1, storage.loads);
+    }
+
+    @Test
+    public void updateBeforeLoadIsNotOverwrittenByTheStoredStates() {
+        new SubscriptionStateCache(storage, KEY).setRefreshedAt(7000L);
+        SubscriptionStateCache deferred = new SubscriptionStateCache(storage, KEY, true);
+        deferred.update(new HashMap<String, SubscriptionStateCache.State>(), 9000L);
+        deferred.load();
+        assertEquals(9000L, deferred.getRefreshedAt());
+    }
+
+    @Test
+    public void putAddsAStateWithoutChangingTheRefreshTime() {
+        HashMap<String, SubscriptionStateCache.State> states = new HashMap<String, SubscriptionStateCache.State>();
+        states.put("monthly", new SubscriptionStateCache.State(1000L, true));
+        new SubscriptionStateCache(storage, KEY).update(states, 5000L);
+
+        new SubscriptionStateCache(storage, KEY).put("yearly", new SubscriptionStateCache.State(6000L, false));
+
+        SubscriptionStateCache reloaded = new SubscriptionStateCache(storage, KEY);
+        assertEquals(5000L, reloaded.getRefreshedAt());
+        assertEquals(1000L, reloaded.get("monthly").purchaseTime);
+        assertEquals(6000L, reloaded.get("yearly").purchaseTime);
+        assertFalse(reloaded.get("yearly").autoRenewing);
+    }
+
+    @Test
+    public void corruptedStatesAreIgnored() {
+        storage.saveString(SubscriptionStateCache.class.getPackage().getName() + KEY, "{\"states\":");
+        SubscriptionStateCache cache = new SubscriptionStateCache(storage, KEY);
+        assertTrue(cache.getContents().isEmpty());
+        assertEquals(0L, cache.getRefreshedAt());
+    }
+}
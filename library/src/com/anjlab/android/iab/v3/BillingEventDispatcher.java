@@ -0,0 +1,255 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans billing events out to any number of IBillingHandler listeners on the main thread.
+ * Events reported within one batch window are delivered together from a single main Looper
+ * message, and duplicates inside a batch are coalesced: identical product lists, purchase, restore
+ * and initialization notifications are delivered once, while lists of different products stay separate.
+ * Errors are never coalesced, and are also reported to the flight recorder as soon as they occur.
+ */
+class BillingEventDispatcher implements BillingProcessor.IBillingHandler {
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 16;
+
+    private abstract static class Event {
+        /**
+         * Events with equal non-null keys inside one batch are coalesced.
+         */
+        String getCoalesceKey() {
+            return null;
+        }
+
+        /**
+         * Folds a newer event with the same key into this one. By default the newer one is dropped.
+         */
+        void merge(Event newer) {
+        }
+
+        abstract void deliver(BillingProcessor.IBillingHandler handler);
+    }
+
+    private static class ProductListEvent extends Event {
+        private List<SkuDetails> products;
+        private final String coalesceKey;
+
+        ProductListEvent(List<SkuDetails> skuList) {
+            products = skuList;
+            coalesceKey = getKey(skuList);
+        }
+
+        /**
+         * Lists of the same products in the same order share a key; different queries never do.
+         */
+        private static String getKey(List<SkuDetails> skuList) {
+            if (skuList == null)
+                return "productList";
+            StringBuilder key = new StringBuilder("productList");
+            for (SkuDetails details : skuList)
+                key.append('\n').append(details.mItemType).append(':').append(details.getSku());
+            return key.toString();
+        }
+
+        @Override
+        String getCoalesceKey() {
+            return coalesceKey;
+        }
+
+        @Override
+        void merge(Event newer) {
+            // same products, keep the most recent details
+            products = ((ProductListEvent) newer).products;
+        }
+
+        @Override
+        void deliver(BillingProcessor.IBillingHandler handler) {
+            handler.onReturnProductList(products != null ? new ArrayList<SkuDetails>(products) : null);
+        }
+    }
+
+    private final CopyOnWriteArrayList<BillingProcessor.IBillingHandler> handlers =
+            new CopyOnWriteArrayList<BillingProcessor.IBillingHandler>();
+    private final ArrayList<Event> pendingEvents = new ArrayList<Event>();
+    private final HashMap<String, Event> pendingByKey = new HashMap<String, Event>();
+    private final Handler mainHandler;
+    private final BillingFlightRecorder flightRecorder;
+    private volatile long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+    private boolean flushScheduled;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public BillingEventDispatcher(BillingFlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public void addHandler(BillingProcessor.IBillingHandler handler) {
+        if (handler != null)
+            handlers.addIfAbsent(handler);
+    }
+
+    public void removeHandler(BillingProcessor.IBillingHandler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * @param millis how long events are collected before being delivered; 0 delivers them
+     *               with the next main Looper iteration
+     */
+    public void setBatchWindow(long millis) {
+        batchWindowMillis = Math.max(0, millis);
+    }
+
+    public long getBatchWindow() {
+        return batchWindowMillis;
+    }
+
+    private void enqueue(Event event) {
+        synchronized (pendingEvents) {
+            String key = event.getCoalesceKey();
+            Event existing = key != null ? pendingByKey.get(key) : null;
+            if (existing != null) {
+                existing.merge(event);
+            }
+            else {
+                pendingEvents.add(event);
+                if (key != null)
+                    pendingByKey.put(key, event);
+            }
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+        long window = batchWindowMillis;
+        if (window > 0)
+            mainHandler.postDelayed(flushRunnable, window);
+        else
+            mainHandler.post(flushRunnable);
+    }
+
+    private void flush() {
+        ArrayList<Event> batch;
+        synchronized (pendingEvents) {
+            batch = new ArrayList<Event>(pendingEvents);
+            pendingEvents.clear();
+            pendingByKey.clear();
+            flushScheduled = false;
+        }
+        for (Event event : batch)
+            for (BillingProcessor.IBillingHandler handler : handlers)
+                event.deliver(handler);
+    }
+
+    public void release() {
+        mainHandler.removeCallbacks(flushRunnable);
+        synchronized (pendingEvents) {
+            pendingEvents.clear();
+            pendingByKey.clear();
+            flushScheduled = false;
+        }
+        handlers.clear();
+    }
+
+    @Override
+    public void onProductPurchased(final String productId, final boolean isOwn) {
+        enqueue(new Event() {
+            @Override
+            String getCoalesceKey() {
+                return "purchased:" + productId + ":" + isOwn;
+            }
+
+            @Override
+            void deliver(BillingProcessor.IBillingHandler handler) {
+                handler.onProductPurchased(productId, isOwn);
+            }
+        });
+    }
+
+    @Override
+    public void onPurchaseHistoryRestored() {
+        enqueue(new Event() {
+            @Override
+            String getCoalesceKey() {
+                return "restored";
+            }
+
+            @Override
+            void deliver(BillingProcessor.IBillingHandler handler) {
+                handler.onPurchaseHistoryRestored();
+            }
+        });
+    }
+
+    @Override
+    public void onBillingError(final int errorCode, final Throwable error) {
+        if (flightRecorder != null)
+            flightRecorder.onError(errorCode);
+        enqueue(new Event() {
+            @Override
+            void deliver(BillingProcessor.IBillingHandler handler) {
+                handler.onBillingError(errorCode, error);
+            }
+        });
+    }
+
+    @Override
+    public void onBillingInitialized() {
+        enqueue(new Event() {
+            @Override
+            String getCoalesceKey() {
+                return "initialized";
+            }
+
+            @Override
+            void deliver(BillingProcessor.IBillingHandler handler) {
+                handler.onBillingInitialized();
+            }
+        });
+    }
+
+    @Override
+    public void onReturnData(final PurchaseData data) {
+        enqueue(new Event() {
+            @Override
+            String getCoalesceKey() {
+                return data != null && data.purchaseToken != null ? "data:" + data.purchaseToken : null;
+            }
+
+            @Override
+            void deliver(BillingProcessor.IBillingHandler handler) {
+                handler.onReturnData(data);
+            }
+        });
+    }
+
+    @Override
+    public void onReturnProductList(List<SkuDetails> skuList) {
+        enqueue(new ProductListEvent(skuList));
+    }
+}
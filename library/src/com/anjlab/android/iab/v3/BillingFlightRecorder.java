@@ -0,0 +1,300 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring buffer of recent billing operations (operation, SKU, response code, start time
+ * and duration). Recording is lock-free and allocation-free: a writer claims a slot with one atomic
+ * increment and publishes it with a per-slot sequence stamp, which readers use to skip slots that are
+ * being overwritten. The buffer can be dumped in a compact binary form or as a Chrome trace
+ * (chrome://tracing, Perfetto), and optionally to a file every time a billing error is reported.
+ */
+class BillingFlightRecorder {
+    private static final String LOG_TAG = "iabv3.recorder";
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public static final byte OP_CONNECT = 1;
+    public static final byte OP_DISCONNECT = 2;
+    public static final byte OP_GET_BUY_INTENT = 3;
+    public static final byte OP_PURCHASE_RESULT = 4;
+    public static final byte OP_VERIFY = 5;
+    public static final byte OP_CONSUME = 6;
+    public static final byte OP_GET_PURCHASES = 7;
+    public static final byte OP_GET_SKU_DETAILS = 8;
+    public static final byte OP_ERROR = 9;
+    private static final String[] OP_NAMES = {
+            "unknown", "connect", "disconnect", "getBuyIntent", "purchaseResult",
+            "verify", "consume", "getPurchases", "getSkuDetails", "error"
+    };
+
+    public static final int FORMAT_BINARY = 0;
+    public static final int FORMAT_CHROME_TRACE = 1;
+
+    private static final int BINARY_MAGIC = 0x49414246; // "IABF"
+    private static final int BINARY_VERSION = 1;
+    private static final long STAMP_WRITING = -1;
+
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLongArray stamps;
+    private final byte[] ops;
+    private final String[] skus;
+    private final int[] responseCodes;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final long[] threadIds;
+
+    private final AtomicBoolean dumpPending = new AtomicBoolean();
+    private volatile File errorDumpFile;
+    private volatile int errorDumpFormat;
+
+    /**
+     * @param capacity number of kept events, rounded up to a power of two
+     */
+    public BillingFlightRecorder(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        stamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            stamps.set(i, STAMP_WRITING);
+        ops = new byte[size];
+        skus = new String[size];
+        responseCodes = new int[size];
+        startNanos = new long[size];
+        durationNanos = new long[size];
+        threadIds = new long[size];
+    }
+
+    /**
+     * @return start time to pass to {@link #record(byte, String, int, long)}
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    public void record(byte op, String sku, int responseCode, long start) {
+        long now = System.nanoTime();
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        // getAndSet is a full barrier, so the field writes below cannot become visible before the mark
+        stamps.getAndSet(slot, STAMP_WRITING);
+        ops[slot] = op;
+        skus[slot] = sku;
+        responseCodes[slot] = responseCode;
+        startNanos[slot] = start;
+        durationNanos[slot] = now - start;
+        threadIds[slot] = Thread.currentThread().getId();
+        stamps.set(slot, sequence);
+    }
+
+    /**
+     * Records an event without duration.
+     */
+    public void mark(byte op, String sku, int responseCode) {
+        record(op, sku, responseCode, System.nanoTime());
+    }
+
+    /**
+     * @return SKU column value for a call about several products: the first one and how many more, e.g. "sku1 +4"
+     */
+    static String describeSkus(List<String> skus) {
+        if (skus == null || skus.isEmpty())
+            return null;
+        return skus.size() == 1 ? skus.get(0) : skus.get(0) + " +" + (skus.size() - 1);
+    }
+
+    private interface EventWriter {
+        void write(long sequence, byte op, String sku, int responseCode, long start, long duration, long threadId)
+                throws IOException;
+    }
+
+    /**
+     * Passes consistent copies of the buffered events to the writer, oldest first.
+     * @return number of written events
+     */
+    private int readEvents(EventWriter writer) throws IOException {
+        long end = nextSequence.get();
+        long first = Math.max(0, end - (mask + 1));
+        int count = 0;
+        for (long sequence = first; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (stamps.get(slot) != sequence)
+                continue;
+            byte op = ops[slot];
+            String sku = skus[slot];
+            int responseCode = responseCodes[slot];
+            long start = startNanos[slot];
+            long duration = durationNanos[slot];
+            long threadId = threadIds[slot];
+            // the slot was reused while it was being copied; compareAndSet also keeps the reads above before it
+            if (!stamps.compareAndSet(slot, sequence, sequence))
+                continue;
+            writer.write(sequence, op, sku, responseCode, start, duration, threadId);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes big-endian records after a header of magic, version and the nanoTime of the dump:
+     * sequence (long), op (byte), response code (int), start and duration in nanoseconds (long),
+     * thread id (long), SKU (modified UTF-8, empty if none). A record with sequence -1 ends the dump.
+     */
+    public int writeBinary(OutputStream output) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        data.writeLong(System.nanoTime());
+        int count = readEvents(new EventWriter() {
+            @Override
+            public void write(long sequence, byte op, String sku, int responseCode, long start, long duration,
+                              long threadId) throws IOException {
+                data.writeLong(sequence);
+                data.writeByte(op);
+                data.writeInt(responseCode);
+                data.writeLong(start);
+                data.writeLong(duration);
+                data.writeLong(threadId);
+                data.writeUTF(sku != null ? sku : "");
+            }
+        });
+        data.writeLong(-1);
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Writes the events in the Chrome trace event format as complete ("X") events.
+     */
+    public int writeChromeTrace(OutputStream output) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        writer.write("{\"traceEvents\":[");
+        final boolean[] first = { true };
+        int count = readEvents(new EventWriter() {
+            @Override
+            public void write(long sequence, byte op, String sku, int responseCode, long start, long duration,
+                              long threadId) throws IOException {
+                try {
+                    JSONObject args = new JSONObject();
+                    args.put("sequence", sequence);
+                    args.put("response", responseCode);
+                    if (sku != null)
+                        args.put("sku", sku);
+                    JSONObject event = new JSONObject();
+                    event.put("name", op > 0 && op < OP_NAMES.length ? OP_NAMES[op] : OP_NAMES[0]);
+                    event.put("cat", "billing");
+                    event.put("ph", "X");
+                    event.put("ts", start / 1000);
+                    event.put("dur", duration / 1000);
+                    event.put("pid", 0);
+                    event.put("tid", threadId);
+                    event.put("args", args);
+                    if (!first[0])
+                        writer.write(",\n");
+                    writer.write(event.toString());
+                    first[0] = false;
+                }
+                catch (JSONException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        });
+        writer.write("]}\n");
+        writer.flush();
+        return count;
+    }
+
+    public int write(OutputStream output, int format) throws IOException {
+        return format == FORMAT_CHROME_TRACE ? writeChromeTrace(output) : writeBinary(output);
+    }
+
+    /**
+     * @param file file to overwrite with a dump after every reported billing error, or null to disable
+     */
+    public void setErrorDumpFile(File file, int format) {
+        errorDumpFormat = format;
+        errorDumpFile = file;
+    }
+
+    /**
+     * Records the error and, if a dump file is set, writes the buffer to it on a background thread.
+     * Errors reported while a dump is pending are included in that dump.
+     */
+    public void onError(int errorCode) {
+        mark(OP_ERROR, null, errorCode);
+        if (errorDumpFile == null || !dumpPending.compareAndSet(false, true))
+            return;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dumpPending.set(false);
+                File file = errorDumpFile;
+                if (file != null)
+                    dump(file, errorDumpFormat);
+            }
+        }, "iabv3-recorder-dump");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void dump(File file, int format) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(tempFile);
+            write(output, format);
+            output.close();
+            output = null;
+            if (!tempFile.renameTo(file))
+                Log.e(LOG_TAG, "Failed to write " + file);
+        }
+        catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+        }
+        finally {
+            if (output != null) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -15,9 +15,26 @@
  */
 package com.anjlab.android.iab.v3;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -31,6 +48,7 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -52,6 +70,9 @@ public class BillingProcessor extends BillingBase {
     }
     
     public static interface IBillingHandlerProduct{
+        /**
+         * @param skuDetails details of the queried product, or null if Google Play does not know it
+         */
         void onReturnProductList(SkuDetails skuDetails);
     }
 
@@ -61,43 +82,205 @@ public class BillingProcessor extends BillingBase {
     private static final String RESTORE_KEY = ".products.restored" + SETTINGS_VERSION;
     private static final String MANAGED_PRODUCTS_CACHE_KEY = ".products.cache" + SETTINGS_VERSION;
     private static final String SUBSCRIPTIONS_CACHE_KEY = ".subscriptions.cache" + SETTINGS_VERSION;
+    private static final String SUBSCRIPTION_STATES_CACHE_KEY = ".subscriptions.states" + SETTINGS_VERSION;
+    private static final String PURCHASES_DIGEST_KEY = ".purchases.digest" + SETTINGS_VERSION + ".";
+    private static final String JOURNAL_FILE_NAME = ".journal" + SETTINGS_VERSION;
 
 
-    private IInAppBillingService billingService;
+    static {
+        BillingLog.setLogger(new AndroidBillingLogger());
+    }
+
+    private static final int PRODUCT_LOCK_STRIPES = 16;
+
+    public static final int FLIGHT_RECORDER_FORMAT_BINARY = BillingFlightRecorder.FORMAT_BINARY;
+    public static final int FLIGHT_RECORDER_FORMAT_CHROME_TRACE = BillingFlightRecorder.FORMAT_CHROME_TRACE;
+
+    private volatile IInAppBillingService billingService;
     private String contextPackageName;
-    private String purchasePayload;
+    /**
+     * Purchase flow started last for a product.
+     */
+    private static class PurchaseFlow {
+        final String payload;
+        final String type;
+
+        PurchaseFlow(String payload, String type) {
+            this.payload = payload;
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentHashMap<String, PurchaseFlow> purchaseFlows = new ConcurrentHashMap<String, PurchaseFlow>();
+    /**
+     * Serializes purchases, consumptions and purchase results of the same product.
+     */
+    private final StripedLock productLocks = new StripedLock(PRODUCT_LOCK_STRIPES);
+    /**
+     * Orders snapshot writes of all instances, which share one snapshot file.
+     */
+    private static final Object entitlementSnapshotLock = new Object();
+    private volatile ExecutorService purchaseCompletionExecutor;
     private String signatureBase64;
+    private volatile PurchaseVerifier purchaseVerifier;
     private BillingCache cachedProducts;
     private BillingCache cachedSubscriptions;
-    private IBillingHandler eventHandler;
+    private PreferencesBillingStorage preferencesStorage;
+    private SubscriptionStateCache subscriptionStates;
+    private SubscriptionRefreshScheduler subscriptionRefreshScheduler;
+    private BillingJournal journal;
+    private FutureTask<Void> startup;
+    private PurchaseReconciler purchaseReconciler = new PurchaseReconciler(new PurchaseReconciler.Task() {
+        @Override
+        public boolean reconcile() throws Exception {
+            return reconcilePurchases();
+        }
+    });
+    private File entitlementSnapshotFile;
+    /**
+     * Set by the startup task if the journal replay changed a cache or there is no snapshot yet.
+     */
+    private boolean entitlementSnapshotStale;
+    private volatile EntitlementBitSet entitlements;
+    private final SingleFlight inFlightQueries = new SingleFlight();
+    private SkuDetailsCache cachedSkuDetails = new SkuDetailsCache();
+    private final SkuCatalog skuCatalog = new SkuCatalog();
+    private volatile SkuDetailsBatcher skuDetailsBatcher;
+    private final HashMap<String, ArrayList<String>> warmUpSkus = new HashMap<String, ArrayList<String>>();
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "iabv3-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final BillingEventDispatcher eventDispatcher;
+    private final BillingFlightRecorder flightRecorder = new BillingFlightRecorder(BillingFlightRecorder.DEFAULT_CAPACITY);
 
     private ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
         public void onServiceDisconnected(ComponentName name) {
             billingService = null;
+            flightRecorder.mark(BillingFlightRecorder.OP_DISCONNECT, null, Constants.BILLING_RESPONSE_RESULT_OK);
         }
 
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             billingService = IInAppBillingService.Stub.asInterface(service);
-            if (!isPurchaseHistoryRestored() && loadOwnedPurchasesFromGoogle()) {
-                setPurchaseHistoryRestored();
-                if(eventHandler != null)
-                    eventHandler.onPurchaseHistoryRestored();
-            }
-            if(eventHandler != null)
-                eventHandler.onBillingInitialized();
+            flightRecorder.mark(BillingFlightRecorder.OP_CONNECT, null, Constants.BILLING_RESPONSE_RESULT_OK);
+            warmUpSkuDetails();
+            restorePurchaseHistoryIfNeeded();
+            eventDispatcher.onBillingInitialized();
         }
     };
 
     public BillingProcessor(Activity context, String licenseKey, IBillingHandler handler) {
         super(context);
+        long constructionStart = SystemClock.uptimeMillis();
         signatureBase64 = licenseKey;
-        eventHandler = handler;
+        purchaseVerifier = new SignaturePurchaseVerifier(licenseKey);
+        eventDispatcher = new BillingEventDispatcher(flightRecorder);
+        eventDispatcher.addHandler(handler);
         contextPackageName = context.getApplicationContext().getPackageName();
-        cachedProducts = new BillingCache(context, MANAGED_PRODUCTS_CACHE_KEY);
-        cachedSubscriptions = new BillingCache(context, SUBSCRIPTIONS_CACHE_KEY);
+        preferencesStorage = new PreferencesBillingStorage(context);
+        cachedProducts = new BillingCache(preferencesStorage, MANAGED_PRODUCTS_CACHE_KEY, true);
+        cachedSubscriptions = new BillingCache(preferencesStorage, SUBSCRIPTIONS_CACHE_KEY, true);
+        subscriptionStates = new SubscriptionStateCache(preferencesStorage, SUBSCRIPTION_STATES_CACHE_KEY, true);
+        subscriptionRefreshScheduler = new SubscriptionRefreshScheduler(subscriptionStates, cachedSkuDetails,
+                new SubscriptionRefreshScheduler.Refresher() {
+                    @Override
+                    public boolean refreshSubscriptions() {
+                        return isInitialized() && loadPurchasesByType(Constants.PRODUCT_TYPE_SUBSCRIPTION, cachedSubscriptions);
+                    }
+                });
+        // getFilesDir may create the directory, so the files are resolved by the startup task as well
+        final Context applicationContext = context.getApplicationContext();
+        // the caches live in the Activity's preferences, so the journal replaying into them is per Activity too
+        final String journalFileName = getPreferencesBaseKey() + "." + context.getLocalClassName() + JOURNAL_FILE_NAME;
+        startup = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long start = SystemClock.uptimeMillis();
+                journal = BillingJournal.open(new File(applicationContext.getFilesDir(), journalFileName));
+                entitlementSnapshotFile = EntitlementSnapshot.getFile(applicationContext);
+                cachedProducts.load();
+                cachedSubscriptions.load();
+                subscriptionStates.load();
+                entitlementSnapshotStale = replayJournal() || !entitlementSnapshotFile.exists();
+                Log.d(LOG_TAG, String.format("Loaded purchase caches in %d ms", SystemClock.uptimeMillis() - start));
+                return null;
+            }
+        });
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitStartup();
+                // written after the startup task, so callers waiting for the caches never wait for its fsync
+                if (entitlementSnapshotStale)
+                    writeEntitlementSnapshot();
+            }
+        }, "iabv3-cache-load");
+        loader.setDaemon(true);
+        loader.start();
         bindPlayServices();
+        Log.d(LOG_TAG, String.format("BillingProcessor constructed in %d ms", SystemClock.uptimeMillis() - constructionStart));
+    }
+
+    /**
+     * Waits for the caches to be loaded and the journal to be opened and replayed. If the background load
+     * has not started yet, it is run on the calling thread instead, so callers never wait for
+     * the loader thread to be scheduled.
+     */
+    private void awaitStartup() {
+        startup.run();
+        try {
+            startup.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            Log.e(LOG_TAG, e.getCause().toString());
+        }
+    }
+
+    /**
+     * Re-applies cache mutations that were interrupted by process death or could not be persisted,
+     * see {@link BillingJournal#replay(BillingCache...)}. The journal is shared with the other
+     * instances of the same Activity, whichever starts first replays it.
+     * @return true if a cache was changed
+     */
+    private boolean replayJournal() {
+        BillingJournal.Replay replay = journal.replay(cachedProducts, cachedSubscriptions);
+        if (replay.applied || replay.unconfirmedConsumption) {
+            invalidatePurchasesDigest(Constants.PRODUCT_TYPE_MANAGED);
+            invalidatePurchasesDigest(Constants.PRODUCT_TYPE_SUBSCRIPTION);
+        }
+        if (replay.unconfirmedConsumption) {
+            // Google Play may have consumed the product before the process died, only a restore tells;
+            // the cleared flag makes the next connection restore, or this one if it is already up
+            saveBoolean(getPreferencesBaseKey() + RESTORE_KEY, false);
+            if (isInitialized()) {
+                // not on this thread, restoring waits for the startup task that is running it
+                Thread restorer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        restorePurchaseHistoryIfNeeded();
+                    }
+                }, "iabv3-restore");
+                restorer.setDaemon(true);
+                restorer.start();
+            }
+        }
+        return replay.applied;
+    }
+
+    private void restorePurchaseHistoryIfNeeded() {
+        if (!isPurchaseHistoryRestored() && loadOwnedPurchasesFromGoogle()) {
+            setPurchaseHistoryRestored();
+            eventDispatcher.onPurchaseHistoryRestored();
+        }
     }
 
     private void bindPlayServices() {
@@ -120,8 +303,57 @@ public class BillingProcessor extends BillingBase {
             }
             billingService = null;
         }
-        cachedProducts.release();
-        super.release();
+        setSkuDetailBatching(0, 0);
+        warmUpExecutor.shutdownNow();
+        subscriptionRefreshScheduler.release();
+        purchaseReconciler.stop();
+        // no callbacks after release, purchases still being completed are only persisted
+        eventDispatcher.release();
+
+        // storage and the journal must outlive purchases still being completed, so they are torn down
+        // by the purchase worker after those, or by a thread of its own; the caller never waits
+        Runnable teardown = new Runnable() {
+            @Override
+            public void run() {
+                awaitStartup();
+                if (journal != null)
+                    journal.close();
+                preferencesStorage.release();
+                BillingProcessor.super.release();
+            }
+        };
+        synchronized (this) {
+            ExecutorService executor = purchaseCompletionExecutor;
+            purchaseCompletionExecutor = null;
+            if (executor != null) {
+                executor.execute(teardown);
+                executor.shutdown();
+                return;
+            }
+        }
+        Thread releaser = new Thread(teardown, "iabv3-release");
+        releaser.setDaemon(true);
+        releaser.start();
+    }
+
+    /**
+     * Registers an additional listener. All listeners receive billing events on the main thread.
+     */
+    public void addBillingHandler(IBillingHandler handler) {
+        eventDispatcher.addHandler(handler);
+    }
+
+    public void removeBillingHandler(IBillingHandler handler) {
+        eventDispatcher.removeHandler(handler);
+    }
+
+    /**
+     * Sets how long billing events are collected before they are delivered together
+     * from one main Looper message. Duplicate events inside a batch are coalesced.
+     * Defaults to {@link BillingEventDispatcher#DEFAULT_BATCH_WINDOW_MILLIS}.
+     */
+    public void setEventBatchWindow(long millis) {
+        eventDispatcher.setBatchWindow(millis);
     }
 
     public boolean isInitialized() {
@@ -129,18 +361,51 @@ public class BillingProcessor extends BillingBase {
     }
 
     public boolean isPurchased(String productId) {
+        awaitStartup();
         return cachedProducts.includesProduct(productId);
     }
 
     public boolean isSubscribed(String productId) {
+        awaitStartup();
         return cachedSubscriptions.includesProduct(productId);
     }
 
+    /**
+     * Registers which SKUs unlock which features. A feature is enabled when at least one of its SKUs
+     * is an owned product or subscription. Replaces any previously registered map.
+     */
+    public void setEntitlements(Map<String, ? extends Collection<String>> featureSkus) {
+        entitlements = featureSkus != null ? new EntitlementBitSet(featureSkus, cachedProducts, cachedSubscriptions) : null;
+    }
+
+    /**
+     * @return id of a feature registered with {@link #setEntitlements(Map)} for use with
+     * {@link #hasFeature(int)}, or -1 if the feature is unknown
+     */
+    public int getFeatureId(String feature) {
+        EntitlementBitSet current = entitlements;
+        return current != null ? current.getFeatureId(feature) : -1;
+    }
+
+    /**
+     * Allocation-free entitlement check, meant to be called as often as needed (e.g. on every draw).
+     */
+    public boolean hasFeature(int featureId) {
+        EntitlementBitSet current = entitlements;
+        return current != null && current.isEnabled(featureId);
+    }
+
+    public boolean hasFeature(String feature) {
+        return hasFeature(getFeatureId(feature));
+    }
+
     public List<String> listOwnedProducts() {
+        awaitStartup();
         return cachedProducts.getContents();
     }
 
     public List<String> listOwnedSubscriptions() {
+        awaitStartup();
         return cachedSubscriptions.getContents();
     }
 
@@ -148,48 +413,251 @@ public class BillingProcessor extends BillingBase {
         if (!isInitialized())
             return false;
         try {
-            Bundle bundle = billingService.getPurchases(Constants.GOOGLE_API_VERSION, contextPackageName, type, null);
-            if (bundle.getInt(Constants.RESPONSE_CODE) == Constants.BILLING_RESPONSE_RESULT_OK) {
-                cacheStorage.clear();
-                for (String purchaseData : bundle.getStringArrayList(Constants.INAPP_PURCHASE_DATA_LIST)) {
-                    JSONObject purchase = new JSONObject(purchaseData);
-                    cacheStorage.put(purchase.getString("productId"), purchase.getString("purchaseToken"));
-                }
-            }
+            PurchasesResponse response = getPurchases(type);
+            if (response.responseCode == Constants.BILLING_RESPONSE_RESULT_OK)
+                applyPurchases(type, cacheStorage, response);
             return true;
         }
         catch (Exception e) {
-            if(eventHandler != null)
-                eventHandler.onBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
+            eventDispatcher.onBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
             Log.e(LOG_TAG, e.toString());
         }
         return false;
     }
 
+    /**
+     * Replaces the cached purchases of the given type with the ones returned by getPurchases,
+     * unless they have the same digest as the last applied list. Purchases and consumptions made
+     * while the list was being fetched are kept (see {@link BillingCache#replace(Map, int)}).
+     * @return true if the cache was updated
+     */
+    private boolean applyPurchases(String type, BillingCache cacheStorage, PurchasesResponse response)
+            throws JSONException {
+        awaitStartup();
+        List<String> purchaseDataList = response.purchaseDataList;
+        String digest = getPurchasesDigest(purchaseDataList);
+        String digestKey = getPreferencesBaseKey() + PURCHASES_DIGEST_KEY + type;
+        if (digest.equals(loadString(digestKey, null))) {
+            if (cacheStorage == cachedSubscriptions) {
+                subscriptionStates.setRefreshedAt(System.currentTimeMillis());
+                subscriptionRefreshScheduler.schedule();
+            }
+            return false;
+        }
+
+        HashMap<String, String> tokens = new HashMap<String, String>();
+        HashMap<String, SubscriptionStateCache.State> states = new HashMap<String, SubscriptionStateCache.State>();
+        for (String purchaseData : purchaseDataList) {
+            JSONObject purchase = new JSONObject(purchaseData);
+            tokens.put(purchase.getString("productId"), purchase.getString("purchaseToken"));
+            states.put(purchase.getString("productId"),
+                    new SubscriptionStateCache.State(purchase.optLong("purchaseTime"), purchase.optBoolean("autoRenewing", true)));
+        }
+        synchronized (cacheStorage) {
+            // the digest describes the cache only if nothing changed it since the fetch started
+            boolean unchangedSinceFetch = cacheStorage.getVersion() == response.fetchedAtVersion;
+            if (!cacheStorage.replace(tokens, response.fetchedAtVersion)) {
+                Log.d(LOG_TAG, "Not applying a purchase list that is older than the cache");
+                return false;
+            }
+            saveString(digestKey, unchangedSinceFetch ? digest : "");
+        }
+        if (cacheStorage == cachedSubscriptions) {
+            subscriptionStates.update(states, System.currentTimeMillis());
+            subscriptionRefreshScheduler.schedule();
+        }
+        writeEntitlementSnapshot();
+        return true;
+    }
+
+    private static String getPurchasesDigest(List<String> purchaseDataList) {
+        ArrayList<String> sorted = new ArrayList<String>(purchaseDataList);
+        Collections.sort(sorted);
+        CRC32 crc = new CRC32();
+        for (String purchaseData : sorted) {
+            crc.update(purchaseData.getBytes());
+            crc.update('\n');
+        }
+        return sorted.size() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Forgets the digest of the last applied purchase list after a local cache change,
+     * so that the next restore is applied even if Google Play returns the same list.
+     */
+    private void invalidatePurchasesDigest(String type) {
+        saveString(getPreferencesBaseKey() + PURCHASES_DIGEST_KEY + type, "");
+    }
+
+    private boolean reconcilePurchases() throws Exception {
+        if (!isInitialized())
+            return false;
+        boolean changed = false;
+        PurchasesResponse products = getPurchases(Constants.PRODUCT_TYPE_MANAGED);
+        PurchasesResponse subscriptions = getPurchases(Constants.PRODUCT_TYPE_SUBSCRIPTION);
+        if (products.responseCode != Constants.BILLING_RESPONSE_RESULT_OK ||
+                subscriptions.responseCode != Constants.BILLING_RESPONSE_RESULT_OK)
+            return false;
+        changed |= applyPurchases(Constants.PRODUCT_TYPE_MANAGED, cachedProducts, products);
+        changed |= applyPurchases(Constants.PRODUCT_TYPE_SUBSCRIPTION, cachedSubscriptions, subscriptions);
+        if (changed) {
+            Log.d(LOG_TAG, "Reconciliation found changed purchases");
+            eventDispatcher.onPurchaseHistoryRestored();
+        }
+        return true;
+    }
+
+    /**
+     * Starts restoring purchases periodically on a background thread, so that refunds and purchases
+     * made on other devices are noticed. When the purchases returned by Google Play did not change,
+     * nothing is persisted and no callback is made; otherwise onPurchaseHistoryRestored is called.
+     * @param intervalMillis delay between runs
+     * @param jitter fraction (0..1) by which every delay is randomly shortened or lengthened
+     * @param maxBackoffMillis upper bound of the retry delay after failed runs
+     */
+    public void startPurchaseReconciliation(long intervalMillis, double jitter, long maxBackoffMillis) {
+        purchaseReconciler.start(intervalMillis, jitter, maxBackoffMillis);
+    }
+
+    public void stopPurchaseReconciliation() {
+        purchaseReconciler.stop();
+    }
+
     public boolean loadOwnedPurchasesFromGoogle() {
         return isInitialized() &&
                 loadPurchasesByType(Constants.PRODUCT_TYPE_MANAGED, cachedProducts) &&
                 loadPurchasesByType(Constants.PRODUCT_TYPE_SUBSCRIPTION, cachedSubscriptions);
     }
 
+    /**
+     * @return purchase time of an owned subscription in milliseconds since epoch, or 0 if unknown
+     */
+    public long getSubscriptionPurchaseTime(String productId) {
+        SubscriptionStateCache.State state = subscriptionStates.get(productId);
+        return state != null ? state.purchaseTime : 0;
+    }
+
+    public boolean isSubscriptionAutoRenewing(String productId) {
+        SubscriptionStateCache.State state = subscriptionStates.get(productId);
+        return state != null && state.autoRenewing;
+    }
+
+    /**
+     * Sets the billing period used to predict renewals of a subscription, in ISO 8601 form
+     * (P1W, P1M, P3M, P6M, P1Y). Without it the period reported by getSkuDetails is used,
+     * or one month if the details are not known.
+     */
+    public void setSubscriptionPeriod(String productId, String isoPeriod) {
+        subscriptionRefreshScheduler.setPeriod(productId, isoPeriod);
+        subscriptionRefreshScheduler.schedule();
+    }
+
+    /**
+     * @return wall-clock time after which owned subscriptions may have renewed or lapsed,
+     * or Long.MAX_VALUE if there are no subscriptions
+     */
+    public long getNextSubscriptionRefreshTime() {
+        return subscriptionRefreshScheduler.getNextRefreshTime();
+    }
+
+    /**
+     * Reloads subscriptions from Google Play only if a billing period of an owned subscription
+     * ended since the last refresh. Use it instead of periodic loadOwnedPurchasesFromGoogle calls.
+     * @return true if subscriptions were reloaded
+     */
+    public boolean refreshSubscriptionsIfDue() {
+        return subscriptionRefreshScheduler.refreshIfDue();
+    }
+
+    /**
+     * Enables a timer that calls {@link #refreshSubscriptionsIfDue()} on a background thread around
+     * the ends of subscription billing periods while this BillingProcessor is alive.
+     */
+    public void setSubscriptionRefreshScheduling(boolean enabled) {
+        subscriptionRefreshScheduler.setEnabled(enabled);
+    }
+
+    /**
+     * Writes the cached products and subscriptions to the stream as NDJSON (see {@link BillingStateExporter}).
+     * Records are streamed one by one, so large states are exported without building them in memory.
+     * @param includeGooglePurchases also write the raw purchases returned by Google Play, page by page
+     * @return number of written records
+     */
+    public int exportState(OutputStream output, boolean includeGooglePurchases) throws Exception {
+        awaitStartup();
+        BillingStateExporter exporter = new BillingStateExporter(output);
+        exporter.writeCache(BillingStateExporter.KIND_PRODUCT, cachedProducts);
+        exporter.writeCache(BillingStateExporter.KIND_SUBSCRIPTION, cachedSubscriptions);
+        if (includeGooglePurchases && isInitialized()) {
+            exportGooglePurchases(exporter, Constants.PRODUCT_TYPE_MANAGED);
+            exportGooglePurchases(exporter, Constants.PRODUCT_TYPE_SUBSCRIPTION);
+        }
+        exporter.flush();
+        return exporter.getRecordCount();
+    }
+
+    private void exportGooglePurchases(BillingStateExporter exporter, String type) throws Exception {
+        IInAppBillingService service = billingService;
+        if (service == null)
+            throw new IllegalStateException("Billing service is not connected");
+        String continuationToken = null;
+        do {
+            long start = flightRecorder.begin();
+            Bundle bundle = null;
+            try {
+                bundle = service.getPurchases(Constants.GOOGLE_API_VERSION, contextPackageName, type, continuationToken);
+            }
+            finally {
+                recordCall(BillingFlightRecorder.OP_GET_PURCHASES, getOwnedSkus(bundle), bundle, start);
+            }
+            int response = bundle.getInt(Constants.RESPONSE_CODE);
+            if (response != Constants.BILLING_RESPONSE_RESULT_OK)
+                throw new IllegalStateException("getPurchases failed with response " + response);
+            ArrayList<String> purchaseDataList = bundle.getStringArrayList(Constants.INAPP_PURCHASE_DATA_LIST);
+            ArrayList<String> signatureList = bundle.getStringArrayList(Constants.INAPP_DATA_SIGNATURE_LIST);
+            if (purchaseDataList != null) {
+                for (int i = 0; i < purchaseDataList.size(); i++) {
+                    String signature = signatureList != null && i < signatureList.size() ? signatureList.get(i) : null;
+                    exporter.writePurchase(type, purchaseDataList.get(i), signature);
+                }
+            }
+            exporter.flush();
+            continuationToken = bundle.getString(Constants.INAPP_CONTINUATION_TOKEN);
+        }
+        while (!TextUtils.isEmpty(continuationToken));
+    }
+
+    /**
+     * Adds products and subscriptions read from NDJSON written by {@link #exportState} to the local caches,
+     * e.g. to seed a test device. Purchases are not verified.
+     * @return number of imported records
+     */
+    public int importState(InputStream input) throws IOException {
+        awaitStartup();
+        int count = new BillingStateImporter(cachedProducts, cachedSubscriptions).read(input);
+        invalidatePurchasesDigest(Constants.PRODUCT_TYPE_MANAGED);
+        invalidatePurchasesDigest(Constants.PRODUCT_TYPE_SUBSCRIPTION);
+        writeEntitlementSnapshot();
+        return count;
+    }
+
     public boolean purchase(String productId) {
         return purchase(productId, Constants.PRODUCT_TYPE_MANAGED, cachedProducts);
     }
 
     public List<PurchaseData> getPurchasesNotConsumed(){
-        List<PurchaseData> list = new ArrayList<PurchaseData>();
         //		if (!isInitialized())
         //			return null;
-        eventHandler.onPurchaseHistoryRestored();
+        eventDispatcher.onPurchaseHistoryRestored();
         try {
-            Bundle bundle = billingService.getPurchases(Constants.GOOGLE_API_VERSION, contextPackageName, Constants.PRODUCT_TYPE_MANAGED, null);
-            Log.d(LOG_TAG, billingService.getPurchases(Constants.GOOGLE_API_VERSION, contextPackageName, Constants.PRODUCT_TYPE_MANAGED, null).toString());
-            if (bundle.getInt(Constants.RESPONSE_CODE) == Constants.BILLING_RESPONSE_RESULT_OK) {
-                Log.d(LOG_TAG, bundle.getStringArrayList(Constants.INAPP_PURCHASE_DATA_LIST).toString());
-                for (String purchaseData : bundle.getStringArrayList(Constants.INAPP_PURCHASE_DATA_LIST)) {
+            List<PurchaseData> list = new ArrayList<PurchaseData>();
+            PurchasesResponse response = getPurchases(Constants.PRODUCT_TYPE_MANAGED);
+            if (response.responseCode == Constants.BILLING_RESPONSE_RESULT_OK) {
+                Log.d(LOG_TAG, response.purchaseDataList.toString());
+                for (String purchaseData : response.purchaseDataList) {
                     JSONObject purchase = new JSONObject(purchaseData);
-                    PurchaseData purchasedData = new PurchaseData(purchase.getString("packageName"), purchase.getString("orderId"), 
-                            purchase.getString("productId"), purchase.getString("developerPayload"), 
+                    PurchaseData purchasedData = new PurchaseData(purchase.getString("packageName"), purchase.getString("orderId"),
+                            purchase.getString("productId"), purchase.getString("developerPayload"),
                             Integer.toString(purchase.getInt("purchaseTime")), Integer.toString(purchase.getInt("purchaseState")),
                             purchase.getString("purchaseToken"));
                     list.add(purchasedData);
@@ -197,23 +665,100 @@ public class BillingProcessor extends BillingBase {
             }
             return list;
         }catch (Exception e) {
-            //if(eventHandler != null)
-            //eventHandler.onBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
+            //eventDispatcher.onBillingError(Constants.BILLING_ERROR_FAILED_LOAD_PURCHASES, e);
             Log.e(LOG_TAG, e.toString());
         }
         return null;
     }
 
+    /**
+     * Result of a getPurchases call. It is shared between the callers of a single-flighted request,
+     * so it only holds values extracted from the bundle and unmodifiable lists.
+     */
+    private static class PurchasesResponse {
+        final int responseCode;
+        final List<String> purchaseDataList;
+        final List<String> signatureList;
+        /**
+         * Version of the matching cache when the request was sent.
+         */
+        final int fetchedAtVersion;
+
+        PurchasesResponse(Bundle bundle, int fetchedAtVersion) {
+            this.fetchedAtVersion = fetchedAtVersion;
+            responseCode = bundle.getInt(Constants.RESPONSE_CODE);
+            purchaseDataList = unmodifiableCopy(bundle.getStringArrayList(Constants.INAPP_PURCHASE_DATA_LIST));
+            signatureList = unmodifiableCopy(bundle.getStringArrayList(Constants.INAPP_DATA_SIGNATURE_LIST));
+        }
+
+        private static List<String> unmodifiableCopy(List<String> list) {
+            return list != null ? Collections.unmodifiableList(new ArrayList<String>(list)) : Collections.<String>emptyList();
+        }
+    }
+
+    /**
+     * Calls getPurchases, sharing the response with concurrent callers asking for the same type.
+     */
+    private PurchasesResponse getPurchases(final String type) throws Exception {
+        return inFlightQueries.execute("purchases:" + type, new Callable<PurchasesResponse>() {
+            @Override
+            public PurchasesResponse call() throws Exception {
+                IInAppBillingService service = billingService;
+                if (service == null)
+                    throw new IllegalStateException("Billing service is not connected");
+                awaitStartup();
+                BillingCache cacheStorage = Constants.PRODUCT_TYPE_SUBSCRIPTION.equals(type) ? cachedSubscriptions : cachedProducts;
+                int fetchedAtVersion = cacheStorage.getVersion();
+                long start = flightRecorder.begin();
+                Bundle bundle = null;
+                try {
+                    bundle = service.getPurchases(Constants.GOOGLE_API_VERSION, contextPackageName, type, null);
+                    return new PurchasesResponse(bundle, fetchedAtVersion);
+                }
+                finally {
+                    recordCall(BillingFlightRecorder.OP_GET_PURCHASES, getOwnedSkus(bundle), bundle, start);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of getSkuDetails/getPurchases requests that were answered by an identical
+     * request already in flight instead of a billing service call of their own
+     */
+    public long getSharedQueryCount() {
+        return inFlightQueries.getHitCount();
+    }
+
+    /**
+     * @return number of getSkuDetails/getPurchases requests actually sent to the billing service
+     */
+    public long getExecutedQueryCount() {
+        return inFlightQueries.getMissCount();
+    }
+
     public boolean subscribe(String productId) {
         return purchase(productId, Constants.PRODUCT_TYPE_SUBSCRIPTION, cachedSubscriptions);
     }
 
     private boolean purchase(String productId, String purchaseType, BillingCache cacheStorage) {
-        if (!isInitialized())
+        awaitStartup();
+        IInAppBillingService service = billingService;
+        if (service == null)
             return false;
+        Lock lock = productLocks.get(productId);
+        lock.lock();
         try {
-            purchasePayload = UUID.randomUUID().toString();
-            Bundle bundle = billingService.getBuyIntent(Constants.GOOGLE_API_VERSION, contextPackageName, productId, purchaseType, purchasePayload);
+            String purchasePayload = UUID.randomUUID().toString();
+            purchaseFlows.put(productId, new PurchaseFlow(purchasePayload, purchaseType));
+            long start = flightRecorder.begin();
+            Bundle bundle = null;
+            try {
+                bundle = service.getBuyIntent(Constants.GOOGLE_API_VERSION, contextPackageName, productId, purchaseType, purchasePayload);
+            }
+            finally {
+                recordCall(BillingFlightRecorder.OP_GET_BUY_INTENT, productId, bundle, start);
+            }
             if (bundle != null) {
                 int response = bundle.getInt(Constants.RESPONSE_CODE);
                 if (response == Constants.BILLING_RESPONSE_RESULT_OK) {
@@ -223,46 +768,61 @@ public class BillingProcessor extends BillingBase {
                         
                     }
                      else{
-                        if(eventHandler != null)
-                            eventHandler.onBillingError(Constants.BILLING_ERROR_LOST_CONTEXT, null);
+                        eventDispatcher.onBillingError(Constants.BILLING_ERROR_LOST_CONTEXT, null);
                      }
                 }
                 else if (response == Constants.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED) {
                     if (!isPurchased(productId) && !isSubscribed(productId)){
                         loadOwnedPurchasesFromGoogle();
                     }
-                    if(eventHandler != null){
-                        eventHandler.onProductPurchased(productId, true);
-                    }
+                    eventDispatcher.onProductPurchased(productId, true);
                 }
                 else{
-                    if(eventHandler != null)
-                        eventHandler.onBillingError(Constants.BILLING_ERROR_FAILED_TO_INITIALIZE_PURCHASE, null);
+                    eventDispatcher.onBillingError(Constants.BILLING_ERROR_FAILED_TO_INITIALIZE_PURCHASE, null);
                 }
             }
             return true;
         } catch (Exception e) {
             Log.e(LOG_TAG, e.toString());
         }
+        finally {
+            lock.unlock();
+        }
         return false;
     }
 
     public boolean consumePurchase(String productId) {
-        if (!isInitialized())
+        awaitStartup();
+        IInAppBillingService service = billingService;
+        if (service == null)
             return false;
+        Lock lock = productLocks.get(productId);
+        lock.lock();
         try {
             String purchaseToken = cachedProducts.getProductPurchaseToken(productId);
             if (!TextUtils.isEmpty(purchaseToken)) {
 
-                int response =  billingService.consumePurchase(Constants.GOOGLE_API_VERSION, contextPackageName, purchaseToken);
+                long journalEntry = journal.beginConsume(MANAGED_PRODUCTS_CACHE_KEY, productId, purchaseToken);
+                long start = flightRecorder.begin();
+                int response = Constants.IABHELPER_REMOTE_EXCEPTION;
+                try {
+                    response = service.consumePurchase(Constants.GOOGLE_API_VERSION, contextPackageName, purchaseToken);
+                }
+                finally {
+                    flightRecorder.record(BillingFlightRecorder.OP_CONSUME, productId, response, start);
+                }
                 if (response == Constants.BILLING_RESPONSE_RESULT_OK) {
-                    cachedProducts.remove(productId);
+                    // an unpersisted removal stays in the journal and is replayed on the next start
+                    if (!journal.completeConsume(journalEntry, cachedProducts, productId))
+                        Log.e(LOG_TAG, "Failed to persist consumption of " + productId);
+                    invalidatePurchasesDigest(Constants.PRODUCT_TYPE_MANAGED);
+                    writeEntitlementSnapshot();
                     Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
                     return  true;
                 }
                 else {
-                    if(eventHandler != null)
-                        eventHandler.onBillingError(response, null);
+                    journal.commit(journalEntry);
+                    eventDispatcher.onBillingError(response, null);
                     Log.e(LOG_TAG, String.format("Failed to consume %s: error %d", productId, response));
                 }
             }
@@ -270,98 +830,160 @@ public class BillingProcessor extends BillingBase {
         catch (Exception e) {
             Log.e(LOG_TAG, e.toString());
         }
+        finally {
+            lock.unlock();
+        }
         return false;
     }
 
-    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+    public boolean handleActivityResult(int requestCode, final int resultCode, Intent data) {
         if (requestCode != PURCHASE_FLOW_REQUEST_CODE)
             return false;
-        int responseCode = data.getIntExtra(Constants.RESPONSE_CODE, Constants.BILLING_RESPONSE_RESULT_OK);
+        final int responseCode = data.getIntExtra(Constants.RESPONSE_CODE, Constants.BILLING_RESPONSE_RESULT_OK);
+        final String purchaseData = data.getStringExtra(Constants.INAPP_PURCHASE_DATA);
+        final String dataSignature = data.getStringExtra(Constants.RESPONSE_INAPP_SIGNATURE);
+        // submitted under the lock, so setAsyncPurchaseCompletion and release cannot shut the executor down in between
+        synchronized (this) {
+            if (purchaseCompletionExecutor != null) {
+                purchaseCompletionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completePurchase(resultCode, responseCode, purchaseData, dataSignature);
+                    }
+                });
+                return true;
+            }
+        }
+        completePurchase(resultCode, responseCode, purchaseData, dataSignature);
+        return true;
+    }
+
+    /**
+     * @return product id of a purchase flow result, or null if it has no (readable) purchase data, e.g. when canceled
+     */
+    private static String getPurchasedSku(String purchaseData) {
+        if (TextUtils.isEmpty(purchaseData))
+            return null;
+        try {
+            return new JSONObject(purchaseData).optString("productId", null);
+        }
+        catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses, verifies and persists the result of a purchase flow, then reports it to the listeners.
+     */
+    private void completePurchase(int resultCode, int responseCode, String purchaseData, String dataSignature) {
+        flightRecorder.mark(BillingFlightRecorder.OP_PURCHASE_RESULT, getPurchasedSku(purchaseData),
+                resultCode == Activity.RESULT_OK ? responseCode : Constants.BILLING_RESPONSE_RESULT_USER_CANCELED);
+        awaitStartup();
         if (resultCode == Activity.RESULT_OK && responseCode == Constants.BILLING_RESPONSE_RESULT_OK) {
-            String purchaseData = data.getStringExtra(Constants.INAPP_PURCHASE_DATA);
-            String dataSignature = data.getStringExtra(Constants.RESPONSE_INAPP_SIGNATURE);
             try {
                 JSONObject purchase = new JSONObject(purchaseData);
-                Log.d("DATA", purchaseData.toString());
+                Log.d("DATA", purchaseData);
                 String productId = purchase.getString("productId");
                 String purchaseToken = purchase.getString("purchaseToken");
                 String developerPayload = purchase.getString("developerPayload");
-                PurchaseData purchaseDate = new PurchaseData(purchase.getString("packageName"), purchase.getString("orderId"), 
-                        purchase.getString("productId"), purchase.getString("developerPayload"), 
+                PurchaseData purchaseDate = new PurchaseData(purchase.getString("packageName"), purchase.getString("orderId"),
+                        productId, developerPayload,
                         Integer.toString(purchase.getInt("purchaseTime")), Integer.toString(purchase.getInt("purchaseState")),
-                        purchase.getString("purchaseToken"));
-                if (purchasePayload.equals(developerPayload)) {
-                    if (verifyPurchaseSignature(purchaseData, dataSignature)) {
-                        cachedProducts.put(productId, purchaseToken);
-                        if(eventHandler != null)
-                            eventHandler.onProductPurchased(productId, false);
+                        purchaseToken);
+                PurchaseFlow flow = purchaseFlows.get(productId);
+                String purchasePayload = flow != null ? flow.payload : null;
+                if (developerPayload.equals(purchasePayload)) {
+                    long start = flightRecorder.begin();
+                    boolean verified = verifyPurchaseSignature(purchaseData, dataSignature);
+                    flightRecorder.record(BillingFlightRecorder.OP_VERIFY, productId,
+                            verified ? Constants.BILLING_RESPONSE_RESULT_OK : Constants.BILLING_ERROR_INVALID_SIGNATURE, start);
+                    if (verified) {
+                        purchaseFlows.remove(productId);
+                        boolean subscription = Constants.PRODUCT_TYPE_SUBSCRIPTION.equals(flow.type);
+                        Lock lock = productLocks.get(productId);
+                        lock.lock();
+                        try {
+                            // an unpersisted purchase stays in the journal and is replayed on the next start
+                            if (!journal.put(subscription ? cachedSubscriptions : cachedProducts, productId, purchaseToken))
+                                Log.e(LOG_TAG, "Failed to persist purchase of " + productId);
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                        invalidatePurchasesDigest(flow.type);
+                        if (subscription) {
+                            // tracked right away, so its renewal is refreshed without waiting for a restore
+                            subscriptionStates.put(productId, new SubscriptionStateCache.State(
+                                    purchase.optLong("purchaseTime"), purchase.optBoolean("autoRenewing", true)));
+                            subscriptionRefreshScheduler.schedule();
+                        }
+                        writeEntitlementSnapshot();
+                        eventDispatcher.onProductPurchased(productId, false);
                     }
                     else {
                         Log.e(LOG_TAG, "Public key signature doesn't match!");
-                        if(eventHandler != null)
-                            eventHandler.onBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
+                        eventDispatcher.onBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
                     }
                 }
                 else {
                     Log.e(LOG_TAG, String.format("Payload mismatch: %s != %s", purchasePayload, developerPayload));
-                    if(eventHandler != null)
-                        eventHandler.onBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
+                    eventDispatcher.onBillingError(Constants.BILLING_ERROR_INVALID_SIGNATURE, null);
                 }
 
-                if(purchaseDate != null) if(eventHandler != null)eventHandler.onReturnData(purchaseDate);
+                eventDispatcher.onReturnData(purchaseDate);
             }
             catch (Exception e) {
                 Log.e(LOG_TAG, e.toString());
-                if(eventHandler != null)
-                    eventHandler.onBillingError(Constants.BILLING_ERROR_OTHER_ERROR, null);
+                eventDispatcher.onBillingError(Constants.BILLING_ERROR_OTHER_ERROR, null);
             }
         }
         else {
-            if(eventHandler != null)
-                eventHandler.onBillingError(Constants.BILLING_ERROR_OTHER_ERROR, null);
+            eventDispatcher.onBillingError(Constants.BILLING_ERROR_OTHER_ERROR, null);
+        }
+    }
+
+    /**
+     * In asynchronous mode handleActivityResult returns right away and the purchase is parsed,
+     * verified and persisted on a worker thread; onProductPurchased, onReturnData and onBillingError
+     * are still delivered on the main thread. Use it with verifiers that do network I/O.
+     * {@link #release()} does not wait for purchases that are still being completed; the caches stay
+     * usable by the worker until it has finished them.
+     */
+    public synchronized void setAsyncPurchaseCompletion(boolean enabled) {
+        if (enabled && purchaseCompletionExecutor == null) {
+            purchaseCompletionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "iabv3-purchase");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        else if (!enabled && purchaseCompletionExecutor != null) {
+            // let purchases already handed over finish, they must still be persisted
+            purchaseCompletionExecutor.shutdown();
+            purchaseCompletionExecutor = null;
         }
-        return true;
     }
 
     public int querySkuDetails(String itemType, ArrayList<String> skuList)
             throws RemoteException, JSONException {
         Log.d(LOG_TAG ,"Querying SKU details.");
 
-        
-
         if (skuList.size() == 0) {
             Log.d(LOG_TAG ,"queryPrices: nothing to do because there are no SKUs.");
             return Constants.BILLING_RESPONSE_RESULT_OK;
         }
 
-        Bundle querySkus = new Bundle();
-        querySkus.putStringArrayList(Constants.GET_SKU_DETAILS_ITEM_LIST, skuList);
-        Bundle skuDetails = billingService.getSkuDetails(3, contextPackageName,
-                itemType, querySkus);
-
-        if (!skuDetails.containsKey(Constants.RESPONSE_GET_SKU_DETAILS_LIST)) {
-            int response = skuDetails.getInt("RESPONSE_CODE");
-            if (response != Constants.BILLING_RESPONSE_RESULT_OK) {
-                Log.d(LOG_TAG ,"getSkuDetails() failed: " + String.valueOf(response));
+        List<SkuDetails> skuResultList = cachedSkuDetails.getAll(itemType, skuList);
+        if (skuResultList == null) {
+            skuResultList = new ArrayList<SkuDetails>();
+            int response = loadSkuDetails(itemType, skuList, skuResultList);
+            if (response != Constants.BILLING_RESPONSE_RESULT_OK)
                 return response;
-            }
-            else {
-                Log.d(LOG_TAG ,"getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return Constants.IABHELPER_BAD_RESPONSE;
-            }
         }
-
-        ArrayList<String> responseList = skuDetails.getStringArrayList(
-                Constants.RESPONSE_GET_SKU_DETAILS_LIST);
-
-        List<SkuDetails> skuResultList = new ArrayList<SkuDetails>();
-        for (String thisResponse : responseList) {
-            SkuDetails d = new SkuDetails(itemType, thisResponse);
-            Log.d(LOG_TAG , "Got sku details: " + d);
-            //inv.addSkuDetails(d);
-            skuResultList.add(d);
-        }
-        eventHandler.onReturnProductList(skuResultList);
+        eventDispatcher.onReturnProductList(skuResultList);
         return Constants.BILLING_RESPONSE_RESULT_OK;
     }
     
@@ -369,59 +991,293 @@ public class BillingProcessor extends BillingBase {
             throws RemoteException, JSONException {
         Log.d(LOG_TAG ,"Querying SKU details.");
 
-        
-
         if (skuName == null || skuName.equals("")) {
             Log.d(LOG_TAG ,"queryPrices: nothing to do because there are no SKUs.");
             return Constants.BILLING_RESPONSE_RESULT_OK;
         }
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.add(skuName);
+
+        SkuDetails details = cachedSkuDetails.get(itemType, skuName);
+        SkuDetailsBatcher batcher = skuDetailsBatcher;
+        if (details == null && batcher != null && batcher.enqueue(itemType, skuName, listner))
+            return Constants.BILLING_RESPONSE_RESULT_OK;
+        if (details == null) {
+            ArrayList<String> skuList = new ArrayList<String>();
+            skuList.add(skuName);
+            List<SkuDetails> skuResultList = new ArrayList<SkuDetails>();
+            int response = loadSkuDetails(itemType, skuList, skuResultList);
+            if (response != Constants.BILLING_RESPONSE_RESULT_OK)
+                return response;
+            details = skuResultList.isEmpty() ? null : skuResultList.get(0);
+        }
+        if(listner != null)
+            listner.onReturnProductList(details);
+        return Constants.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    /**
+     * Enables batching of {@link #querySkuDetail(String, String, IBillingHandlerProduct)} calls:
+     * requests for products that are not cached yet are collected for windowMillis (or until
+     * maxBatchSize products are pending) and sent as one getSkuDetails request. In this mode
+     * querySkuDetail returns immediately, listeners are called on the main thread (with null for
+     * products Google Play did not return) and failed requests are reported through onBillingError.
+     * @param windowMillis batching window, 0 or less disables batching; requests collected so far are still sent
+     * @param maxBatchSize products per request, at most {@link SkuDetailsBatcher#MAX_BATCH_SIZE}
+     */
+    public synchronized void setSkuDetailBatching(long windowMillis, int maxBatchSize) {
+        if (windowMillis <= 0) {
+            if (skuDetailsBatcher != null) {
+                skuDetailsBatcher.release();
+                skuDetailsBatcher = null;
+            }
+            return;
+        }
+        if (skuDetailsBatcher == null) {
+            SkuDetailsBatcher batcher = new SkuDetailsBatcher(new SkuDetailsBatcher.Loader() {
+                @Override
+                public int load(String itemType, ArrayList<String> skuList, List<SkuDetails> result) throws Exception {
+                    return loadSkuDetails(itemType, skuList, result);
+                }
+            }, eventDispatcher);
+            batcher.configure(windowMillis, maxBatchSize);
+            skuDetailsBatcher = batcher;
+        }
+        else {
+            skuDetailsBatcher.configure(windowMillis, maxBatchSize);
+        }
+    }
+
+    /**
+     * @return number of querySkuDetail requests that went through the batching window
+     */
+    public long getBatchedSkuDetailRequestCount() {
+        SkuDetailsBatcher batcher = skuDetailsBatcher;
+        return batcher != null ? batcher.getRequestCount() : 0;
+    }
+
+    /**
+     * @return number of getSkuDetails requests sent for batched querySkuDetail calls
+     */
+    public long getSkuDetailBatchCount() {
+        SkuDetailsBatcher batcher = skuDetailsBatcher;
+        return batcher != null ? batcher.getBatchCount() : 0;
+    }
+
+    /**
+     * Registers products whose details are fetched in the background as soon as
+     * the billing service is connected, alongside the initial purchase restore.
+     * The first querySkuDetails call for these products is then answered from memory.
+     */
+    public void setWarmUpSkus(String itemType, ArrayList<String> skuList) {
+        synchronized (warmUpSkus) {
+            if (skuList == null || skuList.isEmpty())
+                warmUpSkus.remove(itemType);
+            else
+                warmUpSkus.put(itemType, new ArrayList<String>(skuList));
+        }
+        if (isInitialized())
+            warmUpSkuDetails();
+    }
+
+    /**
+     * @param millis how long SKU details are answered from memory before they are fetched again,
+     *               0 or less to fetch them on every query
+     */
+    public void setSkuDetailsCacheTtl(long millis) {
+        cachedSkuDetails.setTtl(millis);
+    }
+
+    /**
+     * Drops all SKU details kept in memory, so the next queries fetch current prices.
+     */
+    public void invalidateSkuDetails() {
+        cachedSkuDetails.clear();
+    }
+
+    /**
+     * @return catalog of all SKU details loaded so far, indexed by type, currency and price
+     */
+    public SkuCatalog getSkuCatalog() {
+        return skuCatalog;
+    }
+
+    private void warmUpSkuDetails() {
+        final HashMap<String, ArrayList<String>> pending;
+        synchronized (warmUpSkus) {
+            if (warmUpSkus.isEmpty())
+                return;
+            pending = new HashMap<String, ArrayList<String>>(warmUpSkus);
+        }
+        warmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String itemType : pending.keySet()) {
+                    try {
+                        int response = loadSkuDetails(itemType, pending.get(itemType), new ArrayList<SkuDetails>());
+                        if (response != Constants.BILLING_RESPONSE_RESULT_OK)
+                            Log.e(LOG_TAG, String.format("Failed to warm up %s SKU details: error %d", itemType, response));
+                    }
+                    catch (Exception e) {
+                        Log.e(LOG_TAG, e.toString());
+                    }
+                }
+            }
+        });
+    }
+
+    private static class SkuDetailsResponse {
+        int responseCode;
+        List<SkuDetails> details = new ArrayList<SkuDetails>();
+    }
+
+    /**
+     * Calls getSkuDetails for the given products, stores the results in the in-memory
+     * SKU catalog and appends them to skuResultList. Concurrent calls for the same
+     * products share a single billing service request.
+     * @return billing response code of the request
+     */
+    private int loadSkuDetails(final String itemType, final ArrayList<String> skuList, List<SkuDetails> skuResultList)
+            throws RemoteException, JSONException {
+        ArrayList<String> sortedSkuList = new ArrayList<String>(skuList);
+        Collections.sort(sortedSkuList);
+        SkuDetailsResponse response;
+        try {
+            response = inFlightQueries.execute("skuDetails:" + itemType + ":" + TextUtils.join(",", sortedSkuList),
+                    new Callable<SkuDetailsResponse>() {
+                        @Override
+                        public SkuDetailsResponse call() throws Exception {
+                            return fetchSkuDetails(itemType, skuList);
+                        }
+                    });
+        }
+        catch (RemoteException e) {
+            throw e;
+        }
+        catch (JSONException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        skuResultList.addAll(response.details);
+        return response.responseCode;
+    }
+
+    private SkuDetailsResponse fetchSkuDetails(String itemType, ArrayList<String> skuList)
+            throws RemoteException, JSONException {
+        SkuDetailsResponse result = new SkuDetailsResponse();
+        IInAppBillingService service = billingService;
+        if (service == null) {
+            result.responseCode = Constants.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+            return result;
+        }
 
         Bundle querySkus = new Bundle();
         querySkus.putStringArrayList(Constants.GET_SKU_DETAILS_ITEM_LIST, skuList);
-        Bundle skuDetails = billingService.getSkuDetails(3, contextPackageName,
-                itemType, querySkus);
+        long start = flightRecorder.begin();
+        Bundle skuDetails = null;
+        try {
+            skuDetails = service.getSkuDetails(Constants.GOOGLE_API_VERSION, contextPackageName,
+                    itemType, querySkus);
+        }
+        finally {
+            recordCall(BillingFlightRecorder.OP_GET_SKU_DETAILS, BillingFlightRecorder.describeSkus(skuList), skuDetails, start);
+        }
 
         if (!skuDetails.containsKey(Constants.RESPONSE_GET_SKU_DETAILS_LIST)) {
-            int response = skuDetails.getInt("RESPONSE_CODE");
+            int response = skuDetails.getInt(Constants.RESPONSE_CODE);
             if (response != Constants.BILLING_RESPONSE_RESULT_OK) {
                 Log.d(LOG_TAG ,"getSkuDetails() failed: " + String.valueOf(response));
-                return response;
+                result.responseCode = response;
             }
             else {
                 Log.d(LOG_TAG ,"getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return Constants.IABHELPER_BAD_RESPONSE;
+                result.responseCode = Constants.IABHELPER_BAD_RESPONSE;
             }
+            return result;
         }
 
         ArrayList<String> responseList = skuDetails.getStringArrayList(
                 Constants.RESPONSE_GET_SKU_DETAILS_LIST);
 
-        List<SkuDetails> skuResultList = new ArrayList<SkuDetails>();
         for (String thisResponse : responseList) {
             SkuDetails d = new SkuDetails(itemType, thisResponse);
             Log.d(LOG_TAG , "Got sku details: " + d);
-            //inv.addSkuDetails(d);
-            skuResultList.add(d);
+            cachedSkuDetails.put(itemType, d);
+            result.details.add(d);
         }
-        if(listner != null)
-            listner.onReturnProductList(skuResultList.get(0));
-        return Constants.BILLING_RESPONSE_RESULT_OK;
+        skuCatalog.update(result.details);
+        result.responseCode = Constants.BILLING_RESPONSE_RESULT_OK;
+        return result;
     }
 
+    /**
+     * Records a billing service call in the flight recorder; a missing bundle means the call threw.
+     */
+    private void recordCall(byte op, String sku, Bundle bundle, long start) {
+        flightRecorder.record(op, sku, bundle != null ? bundle.getInt(Constants.RESPONSE_CODE) : Constants.IABHELPER_REMOTE_EXCEPTION, start);
+    }
 
+    /**
+     * @return owned products of a getPurchases response in flight recorder form, see {@link BillingFlightRecorder#describeSkus}
+     */
+    private static String getOwnedSkus(Bundle bundle) {
+        return bundle != null ? BillingFlightRecorder.describeSkus(bundle.getStringArrayList(Constants.INAPP_PURCHASE_ITEM_LIST)) : null;
+    }
+
+    /**
+     * Writes the recent billing operations kept by the flight recorder (operation, SKU, response code,
+     * start time and duration), e.g. from onBillingError.
+     * @param format {@link #FLIGHT_RECORDER_FORMAT_BINARY} or {@link #FLIGHT_RECORDER_FORMAT_CHROME_TRACE}
+     * @return number of written events
+     */
+    public int dumpFlightRecorder(OutputStream output, int format) throws IOException {
+        return flightRecorder.write(output, format);
+    }
+
+    /**
+     * Makes every reported billing error overwrite the given file with a flight recorder dump,
+     * written on a background thread.
+     * @param file dump file, or null to stop dumping
+     */
+    public void setFlightRecorderDumpFile(File file, int format) {
+        flightRecorder.setErrorDumpFile(file, format);
+    }
 
     private boolean verifyPurchaseSignature(String purchaseData, String dataSignature) {
-        if (!TextUtils.isEmpty(signatureBase64)) {
-            try {
-                return Security.verifyPurchase(signatureBase64, purchaseData, dataSignature);
-            }
-            catch (Exception e) {
-                return false;
-            }
+        try {
+            return purchaseVerifier.verify(Collections.singletonList(new PurchaseVerifier.Receipt(purchaseData, dataSignature)))[0];
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the on-device signature check with the given verifier, e.g. an {@link HttpPurchaseVerifier}.
+     * Purchases are verified on the thread that calls handleActivityResult, so verifiers doing
+     * network I/O need {@link #setAsyncPurchaseCompletion(boolean)} to be enabled.
+     * @param verifier verifier to use, or null to restore the default {@link SignaturePurchaseVerifier}
+     */
+    public void setPurchaseVerifier(PurchaseVerifier verifier) {
+        purchaseVerifier = verifier != null ? verifier : new SignaturePurchaseVerifier(signatureBase64);
+    }
+
+    /**
+     * Verifies many receipts at once with the current verifier.
+     * @return verdict for every receipt, in the order of the receipts
+     */
+    public boolean[] verifyPurchases(List<PurchaseVerifier.Receipt> receipts) throws Exception {
+        return purchaseVerifier.verify(receipts);
+    }
+
+    private void writeEntitlementSnapshot() {
+        synchronized (entitlementSnapshotLock) {
+            EntitlementSnapshot.write(entitlementSnapshotFile, cachedProducts.getContents(), cachedSubscriptions.getContents());
         }
-        return true;
     }
 
     private boolean isPurchaseHistoryRestored() {
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Feature entitlements compiled from a feature -> SKUs map. A feature is enabled when
+ * at least one of its SKUs is an owned product or an active subscription.
+ * The bits are recomputed only when one of the billing caches changed since the last check,
+ * so a check by feature id is a version comparison and a single bit test.
+ */
+class EntitlementBitSet {
+    private final HashMap<String, Integer> featureIds = new HashMap<String, Integer>();
+    private final String[][] featureSkus;
+    private final BillingCache products;
+    private final BillingCache subscriptions;
+
+    private volatile long[] bits;
+    private volatile int productsVersion = -1;
+    private volatile int subscriptionsVersion = -1;
+
+    public EntitlementBitSet(Map<String, ? extends Collection<String>> entitlements,
+                             BillingCache products, BillingCache subscriptions) {
+        this.products = products;
+        this.subscriptions = subscriptions;
+        ArrayList<String[]> skus = new ArrayList<String[]>(entitlements.size());
+        for (Map.Entry<String, ? extends Collection<String>> entry : entitlements.entrySet()) {
+            featureIds.put(entry.getKey(), skus.size());
+            skus.add(entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        featureSkus = skus.toArray(new String[skus.size()][]);
+        bits = new long[(featureSkus.length + 63) / 64];
+    }
+
+    /**
+     * @return id to pass to {@link #isEnabled(int)}, or -1 for an unknown feature
+     */
+    public int getFeatureId(String feature) {
+        Integer id = featureIds.get(feature);
+        return id != null ? id : -1;
+    }
+
+    public boolean isEnabled(int featureId) {
+        if (featureId < 0 || featureId >= featureSkus.length)
+            return false;
+        long[] current = bits;
+        if (productsVersion != products.getVersion() || subscriptionsVersion != subscriptions.getVersion())
+            current = recompute();
+        return (current[featureId >>> 6] & (1L << featureId)) != 0;
+    }
+
+    private synchronized long[] recompute() {
+        int newProductsVersion = products.getVersion();
+        int newSubscriptionsVersion = subscriptions.getVersion();
+        if (newProductsVersion == productsVersion && newSubscriptionsVersion == subscriptionsVersion)
+            return bits;
+        long[] newBits = new long[bits.length];
+        for (int featureId = 0; featureId < featureSkus.length; featureId++) {
+            for (String sku : featureSkus[featureId]) {
+                if (products.includesProduct(sku) || subscriptions.includesProduct(sku)) {
+                    newBits[featureId >>> 6] |= 1L << featureId;
+                    break;
+                }
+            }
+        }
+        bits = newBits;
+        productsVersion = newProductsVersion;
+        subscriptionsVersion = newSubscriptionsVersion;
+        return newBits;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Read-only view of the owned products and subscriptions, written by BillingProcessor
+ * after every change of its caches. It can be read through memory-mapped I/O
+ * from Application.onCreate, before any Activity or billing service exists:
+ * <pre>
+ *     if (EntitlementSnapshot.read(context).isPurchased("premium")) ...
+ * </pre>
+ * The snapshot reflects the last sync and is not a replacement for verifying purchases with Google Play.
+ */
+public class EntitlementSnapshot {
+    private static final String LOG_TAG = "iabv3.snapshot";
+    private static final String FILE_NAME = "com.anjlab.android.iab.v3.entitlements.v2_4";
+
+    private static final int MAGIC = 0x49414253;
+    private static final int VERSION = 1;
+    // magic, version, updatedAt, products count, subscriptions count
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    private static final EntitlementSnapshot EMPTY = new EntitlementSnapshot(null, 0);
+
+    private final ByteBuffer buffer;
+    private final int subscriptionsPosition;
+
+    private EntitlementSnapshot(ByteBuffer buffer, int subscriptionsPosition) {
+        this.buffer = buffer;
+        this.subscriptionsPosition = subscriptionsPosition;
+    }
+
+    static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Maps the latest snapshot. Returns an empty snapshot if none was written yet or it is unreadable.
+     */
+    public static EntitlementSnapshot read(Context context) {
+        File file = getFile(context);
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return EMPTY;
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                Log.e(LOG_TAG, "Unknown entitlement snapshot format");
+                return EMPTY;
+            }
+            int productsEnd = skipEntries(mapped, HEADER_SIZE, mapped.getInt(16));
+            if (productsEnd < 0 || skipEntries(mapped, productsEnd, mapped.getInt(20)) < 0) {
+                Log.e(LOG_TAG, "Truncated or corrupted entitlement snapshot");
+                return EMPTY;
+            }
+            return new EntitlementSnapshot(mapped, productsEnd);
+        }
+        catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Atomically replaces the snapshot file with the given product lists. Every write goes through
+     * a temporary file of its own, so concurrent writers never rename a partly written file into place.
+     */
+    static boolean write(File file, List<String> products, List<String> subscriptions) {
+        File tempFile = null;
+        FileOutputStream output = null;
+        try {
+            tempFile = File.createTempFile(FILE_NAME, ".tmp", file.getParentFile());
+            output = new FileOutputStream(tempFile);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(System.currentTimeMillis());
+            data.writeInt(products.size());
+            data.writeInt(subscriptions.size());
+            for (String productId : products)
+                writeEntry(data, productId);
+            for (String productId : subscriptions)
+                writeEntry(data, productId);
+            data.flush();
+            output.getFD().sync();
+            output.close();
+            output = null;
+            if (tempFile.renameTo(file)) {
+                tempFile = null;
+                return true;
+            }
+        }
+        catch (IOException e) {
+            Log.e(LOG_TAG, e.toString());
+        }
+        finally {
+            if (output != null) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    Log.e(LOG_TAG, e.toString());
+                }
+            }
+            if (tempFile != null)
+                tempFile.delete();
+        }
+        return false;
+    }
+
+    /**
+     * Walks count entries starting at position.
+     * @return position after the last entry, or -1 if the entries do not fit into the buffer
+     */
+    private static int skipEntries(ByteBuffer buffer, int position, int count) {
+        if (count < 0)
+            return -1;
+        int limit = buffer.limit();
+        for (int i = 0; i < count; i++) {
+            if (position + 2 > limit)
+                return -1;
+            position += 2 + (buffer.getShort(position) & 0xffff);
+            if (position > limit)
+                return -1;
+        }
+        return position;
+    }
+
+    private static void writeEntry(DataOutputStream data, String productId) throws IOException {
+        // String.getBytes(Charset) needs API 9
+        byte[] bytes = productId.getBytes("UTF-8");
+        data.writeShort(bytes.length);
+        data.write(bytes);
+    }
+
+    public boolean isPurchased(String productId) {
+        return buffer != null && contains(HEADER_SIZE, buffer.getInt(16), productId);
+    }
+
+    public boolean isSubscribed(String productId) {
+        return buffer != null && contains(subscriptionsPosition, buffer.getInt(20), productId);
+    }
+
+    /**
+     * @return time the snapshot was written, in milliseconds since epoch, or 0 if there is no snapshot
+     */
+    public long getUpdatedAt() {
+        return buffer != null ? buffer.getLong(8) : 0;
+    }
+
+    private boolean contains(int position, int count, String productId) {
+        byte[] key;
+        try {
+            key = productId.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.e(LOG_TAG, e.toString());
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort(position) & 0xffff;
+            position += 2;
+            if (length == key.length) {
+                int j = 0;
+                while (j < length && buffer.get(position + j) == key[j])
+                    j++;
+                if (j == length)
+                    return true;
+            }
+            position += length;
+        }
+        return false;
+    }
+}
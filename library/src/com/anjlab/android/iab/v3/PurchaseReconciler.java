@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically runs a purchase reconciliation task on a background thread.
+ * Every delay is randomized by the jitter fraction so that many devices do not hit
+ * Google Play at the same moment; failed runs are retried with exponential backoff
+ * capped at maxBackoffMillis.
+ */
+class PurchaseReconciler {
+    private static final String LOG_TAG = "iabv3.reconcile";
+    private static final long RETRY_BASE_MILLIS = 30 * 1000L;
+
+    interface Task {
+        /**
+         * @return true if the purchases were reconciled, false to retry with backoff
+         */
+        boolean reconcile() throws Exception;
+    }
+
+    private final Task task;
+    private final Random random = new Random();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextRun;
+    private long intervalMillis;
+    private double jitter;
+    private long maxBackoffMillis;
+    private int failures;
+
+    private final Runnable run = new Runnable() {
+        @Override
+        public void run() {
+            boolean reconciled = false;
+            try {
+                reconciled = task.reconcile();
+            }
+            catch (Exception e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+            synchronized (PurchaseReconciler.this) {
+                if (executor == null)
+                    return;
+                failures = reconciled ? 0 : failures + 1;
+                scheduleNext();
+            }
+        }
+    };
+
+    public PurchaseReconciler(Task task) {
+        this.task = task;
+    }
+
+    /**
+     * @param intervalMillis delay between successful runs
+     * @param jitter fraction (0..1) by which every delay is randomly shortened or lengthened
+     * @param maxBackoffMillis upper bound of the delay after failed runs
+     */
+    public synchronized void start(long intervalMillis, double jitter, long maxBackoffMillis) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+        this.maxBackoffMillis = Math.max(1, maxBackoffMillis);
+        failures = 0;
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "iabv3-reconcile");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        scheduleNext();
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            nextRun = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private void scheduleNext() {
+        if (nextRun != null)
+            nextRun.cancel(false);
+        long delay = intervalMillis;
+        if (failures > 0) {
+            int exponent = Math.min(failures - 1, 20);
+            delay = Math.min(maxBackoffMillis, RETRY_BASE_MILLIS << exponent);
+        }
+        delay += (long) (delay * jitter * (2 * random.nextDouble() - 1));
+        nextRun = executor.schedule(run, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+}
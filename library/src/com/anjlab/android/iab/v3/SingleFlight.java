@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates concurrent identical requests: while a request for a key is in flight,
+ * other callers with the same key wait for it and share its result (or its exception)
+ * instead of issuing their own billing service call.
+ */
+class SingleFlight {
+    private static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        Object result;
+        Exception error;
+    }
+
+    private final HashMap<String, Call> calls = new HashMap<String, Call>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, Callable<V> loader) throws Exception {
+        Call call;
+        boolean owner = false;
+        synchronized (calls) {
+            call = calls.get(key);
+            if (call == null) {
+                call = new Call();
+                calls.put(key, call);
+                owner = true;
+            }
+        }
+        if (owner) {
+            misses.incrementAndGet();
+            try {
+                call.result = loader.call();
+            }
+            catch (Exception e) {
+                call.error = e;
+            }
+            finally {
+                synchronized (calls) {
+                    calls.remove(key);
+                }
+                call.done.countDown();
+            }
+        }
+        else {
+            hits.incrementAndGet();
+            call.done.await();
+        }
+        if (call.error != null)
+            throw call.error;
+        return (V) call.result;
+    }
+
+    /**
+     * @return number of requests that joined an in-flight request instead of issuing their own
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests that were actually issued
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single-SKU detail requests for a short window (or until the batch is full)
+ * and sends them as one getSkuDetails call, then hands each result to the listeners
+ * that asked for it on the main thread. Listeners of products missing from the response get null.
+ */
+class SkuDetailsBatcher {
+    private static final String LOG_TAG = "iabv3.batch";
+
+    /**
+     * getSkuDetails accepts at most 20 products per request.
+     */
+    public static final int MAX_BATCH_SIZE = 20;
+
+    interface Loader {
+        /**
+         * Loads details of the given products into result.
+         * @return billing response code
+         */
+        int load(String itemType, ArrayList<String> skuList, List<SkuDetails> result) throws Exception;
+    }
+
+    private final Loader loader;
+    private final BillingProcessor.IBillingHandler errorHandler;
+    private final Handler mainHandler;
+    private final ScheduledExecutorService executor;
+    private final HashMap<String, LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>>> pending =
+            new HashMap<String, LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>>>();
+    private final HashMap<String, ScheduledFuture<?>> scheduledFlushes = new HashMap<String, ScheduledFuture<?>>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private volatile long windowMillis;
+    private volatile int maxBatchSize;
+    private boolean released;
+
+    public SkuDetailsBatcher(Loader loader, BillingProcessor.IBillingHandler errorHandler) {
+        this.loader = loader;
+        this.errorHandler = errorHandler;
+        mainHandler = new Handler(Looper.getMainLooper());
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "iabv3-sku-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void configure(long windowMillis, int maxBatchSize) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, MAX_BATCH_SIZE));
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return false if the batcher was already released and the caller has to load the details itself
+     */
+    public boolean enqueue(final String itemType, String sku, BillingProcessor.IBillingHandlerProduct listener) {
+        synchronized (pending) {
+            if (released)
+                return false;
+            requestCount.incrementAndGet();
+            LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> batch = pending.get(itemType);
+            if (batch == null) {
+                batch = new LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>>();
+                pending.put(itemType, batch);
+            }
+            ArrayList<BillingProcessor.IBillingHandlerProduct> listeners = batch.get(sku);
+            if (listeners == null) {
+                listeners = new ArrayList<BillingProcessor.IBillingHandlerProduct>();
+                batch.put(sku, listeners);
+            }
+            if (listener != null)
+                listeners.add(listener);
+
+            // tasks are submitted under the lock, so release() cannot shut the executor down in between
+            if (batch.size() >= maxBatchSize) {
+                final LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> fullBatch = take(itemType);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(itemType, fullBatch);
+                    }
+                });
+            }
+            else if (!scheduledFlushes.containsKey(itemType)) {
+                scheduledFlushes.put(itemType, executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> batch;
+                        synchronized (pending) {
+                            batch = take(itemType);
+                        }
+                        if (batch != null)
+                            load(itemType, batch);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+        return true;
+    }
+
+    private LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> take(String itemType) {
+        ScheduledFuture<?> flush = scheduledFlushes.remove(itemType);
+        if (flush != null)
+            flush.cancel(false);
+        return pending.remove(itemType);
+    }
+
+    private void load(String itemType, LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> batch) {
+        batchCount.incrementAndGet();
+        try {
+            ArrayList<SkuDetails> result = new ArrayList<SkuDetails>();
+            int response = loader.load(itemType, new ArrayList<String>(batch.keySet()), result);
+            if (response != Constants.BILLING_RESPONSE_RESULT_OK) {
+                errorHandler.onBillingError(response, null);
+                return;
+            }
+            HashMap<String, SkuDetails> detailsBySku = new HashMap<String, SkuDetails>();
+            for (SkuDetails details : result)
+                detailsBySku.put(details.getSku(), details);
+            for (Map.Entry<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> entry : batch.entrySet()) {
+                final SkuDetails details = detailsBySku.get(entry.getKey());
+                if (details == null)
+                    Log.d(LOG_TAG, "No details returned for " + entry.getKey());
+                for (final BillingProcessor.IBillingHandlerProduct listener : entry.getValue()) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onReturnProductList(details);
+                        }
+                    });
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, e.toString());
+            errorHandler.onBillingError(Constants.BILLING_ERROR_OTHER_ERROR, e);
+        }
+    }
+
+    /**
+     * @return number of single-SKU requests received
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of getSkuDetails calls sent for those requests
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Stops batching. Requests already collected are sent right away, so their listeners are still
+     * answered, and the worker thread ends once they are done.
+     */
+    public void release() {
+        synchronized (pending) {
+            released = true;
+            for (final String itemType : new ArrayList<String>(pending.keySet())) {
+                final LinkedHashMap<String, ArrayList<BillingProcessor.IBillingHandlerProduct>> batch = take(itemType);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(itemType, batch);
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+    }
+}
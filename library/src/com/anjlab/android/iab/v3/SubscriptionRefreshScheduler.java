@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 AnjLab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides when owned subscriptions need to be refreshed from Google Play.
+ * A subscription can only renew or lapse at the end of a billing period, so a refresh
+ * is due once a period boundary (plus a grace interval for Google Play to process the renewal)
+ * has passed since the last refresh. While scheduling is enabled, a main-thread timer fires
+ * at those boundaries and hands the check and the refresh itself to a background thread,
+ * so the main thread never waits for the billing service or the preferences.
+ */
+class SubscriptionRefreshScheduler {
+    public static final String DEFAULT_PERIOD = "P1M";
+    public static final long DEFAULT_GRACE_MILLIS = 30 * 60 * 1000L;
+    /**
+     * Uptime-based timers stop during deep sleep, so long delays are split into wall-clock checks.
+     */
+    private static final long MAX_TIMER_DELAY_MILLIS = 60 * 60 * 1000L;
+    /**
+     * Delay before retrying a due refresh that failed, e.g. because the service was not connected.
+     */
+    private static final long RETRY_DELAY_MILLIS = 5 * 60 * 1000L;
+    private static final Pattern PERIOD_PATTERN = Pattern.compile("^P(\\d+)([DWMY])$");
+
+    interface Refresher {
+        boolean refreshSubscriptions();
+    }
+
+    private final SubscriptionStateCache states;
+    private final SkuDetailsCache skuDetails;
+    private final Refresher refresher;
+    private final HashMap<String, String> periods = new HashMap<String, String>();
+    private final Handler mainHandler;
+    private final ExecutorService executor;
+    private volatile long graceMillis = DEFAULT_GRACE_MILLIS;
+    private boolean enabled;
+    private boolean released;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshIfDue();
+            schedule();
+        }
+    };
+
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SubscriptionRefreshScheduler.this) {
+                if (enabled && !released)
+                    executor.execute(refresh);
+            }
+        }
+    };
+
+    public SubscriptionRefreshScheduler(SubscriptionStateCache states, SkuDetailsCache skuDetails, Refresher refresher) {
+        this.states = states;
+        this.skuDetails = skuDetails;
+        this.refresher = refresher;
+        mainHandler = new Handler(Looper.getMainLooper());
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "iabv3-subscription-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param isoPeriod billing period in ISO 8601 form, e.g. P1W, P1M, P3M, P1Y
+     */
+    public synchronized void setPeriod(String productId, String isoPeriod) {
+        periods.put(productId, isoPeriod);
+    }
+
+    public void setGraceMillis(long millis) {
+        graceMillis = Math.max(0, millis);
+    }
+
+    private synchronized String getPeriod(String productId) {
+        String period = periods.get(productId);
+        if (period == null) {
+            SkuDetails details = skuDetails.peek(Constants.PRODUCT_TYPE_SUBSCRIPTION, productId);
+            if (details != null && !TextUtils.isEmpty(details.getSubscriptionPeriod()))
+                period = details.getSubscriptionPeriod();
+        }
+        return period != null && PERIOD_PATTERN.matcher(period).matches() ? period : DEFAULT_PERIOD;
+    }
+
+    /**
+     * @return first end of a billing period of the subscription after the given time
+     */
+    static long getNextPeriodEnd(long purchaseTime, String isoPeriod, long after) {
+        Matcher matcher = PERIOD_PATTERN.matcher(isoPeriod);
+        if (!matcher.matches()) {
+            matcher = PERIOD_PATTERN.matcher(DEFAULT_PERIOD);
+            matcher.matches();
+        }
+        int amount = Math.max(1, Integer.parseInt(matcher.group(1)));
+        char unit = matcher.group(2).charAt(0);
+        int field = unit == 'D' ? Calendar.DAY_OF_YEAR
+                : unit == 'W' ? Calendar.WEEK_OF_YEAR
+                : unit == 'M' ? Calendar.MONTH
+                : Calendar.YEAR;
+
+        Calendar boundary = Calendar.getInstance();
+        // add whole periods to the original purchase time, so month ends do not drift
+        for (int periodsPassed = 1; ; periodsPassed++) {
+            boundary.setTimeInMillis(purchaseTime);
+            boundary.add(field, amount * periodsPassed);
+            if (boundary.getTimeInMillis() > after)
+                return boundary.getTimeInMillis();
+        }
+    }
+
+    /**
+     * @return wall-clock time when subscriptions should next be refreshed,
+     * or Long.MAX_VALUE if no subscription is owned
+     */
+    public long getNextRefreshTime() {
+        long refreshedAt = states.getRefreshedAt();
+        long grace = graceMillis;
+        long next = Long.MAX_VALUE;
+        for (String productId : states.getContents()) {
+            SubscriptionStateCache.State state = states.get(productId);
+            if (state == null || state.purchaseTime <= 0)
+                continue;
+            long boundary = getNextPeriodEnd(state.purchaseTime, getPeriod(productId), refreshedAt - grace);
+            next = Math.min(next, boundary + grace);
+        }
+        return next;
+    }
+
+    public boolean isRefreshDue() {
+        return System.currentTimeMillis() >= getNextRefreshTime();
+    }
+
+    public boolean refreshIfDue() {
+        return isRefreshDue() && refresher.refreshSubscriptions();
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled && !released;
+        mainHandler.removeCallbacks(timer);
+        if (enabled)
+            mainHandler.post(timer);
+    }
+
+    /**
+     * Re-arms the timer, e.g. after the subscription states changed.
+     */
+    public synchronized void schedule() {
+        mainHandler.removeCallbacks(timer);
+        if (!enabled)
+            return;
+        long next = getNextRefreshTime();
+        if (next == Long.MAX_VALUE)
+            return;
+        long delay = next - System.currentTimeMillis();
+        delay = delay <= 0 ? RETRY_DELAY_MILLIS : Math.min(delay, MAX_TIMER_DELAY_MILLIS);
+        mainHandler.postDelayed(timer, delay);
+    }
+
+    /**
+     * Stops the timer and the refresh thread; a refresh in progress is interrupted.
+     */
+    public synchronized void release() {
+        enabled = false;
+        released = true;
+        mainHandler.removeCallbacks(timer);
+        executor.shutdownNow();
+    }
+}